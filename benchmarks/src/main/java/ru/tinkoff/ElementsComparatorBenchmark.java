@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.tinkoff.objects.DiffElement;
+import ru.tinkoff.objects.Element;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Comparison of displayed elements properties by flattened json, field by field and by dictionary ids of ElementsCache.
+ * Run: java -jar benchmarks/target/benchmarks.jar ElementsComparatorBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ElementsComparatorBenchmark {
+
+    @Param({"1000"})
+    private int elementsCount;
+
+    private List<Element[]> pairs;
+    private List<Element[]> encodedPairs;
+
+    @Setup
+    public void setup() {
+        RandomElements randomElements = new RandomElements(42, false);
+
+        pairs = new ArrayList<>(elementsCount);
+        for (int i = 0; i < elementsCount; i++) {
+            pairs.add(randomElements.nextPair());
+        }
+
+        PropertyDictionary dictionary = new PropertyDictionary(Integer.MAX_VALUE);
+        encodedPairs = new ArrayList<>(elementsCount);
+        for (Element[] pair : pairs) {
+            encodedPairs.add(new Element[]{encode(pair[0], dictionary), encode(pair[1], dictionary)});
+        }
+    }
+
+    @Benchmark
+    public void flattened(Blackhole blackhole) {
+        for (Element[] pair : pairs) {
+            DiffElement diffElement = new DiffElement();
+            FlattenedElementsComparator.compareProperties(diffElement, pair[0], pair[1]);
+            blackhole.consume(diffElement);
+        }
+    }
+
+    @Benchmark
+    public void fieldByField(Blackhole blackhole) {
+        for (Element[] pair : pairs) {
+            DiffElement diffElement = new DiffElement();
+            ElementsComparator.compareProperties(diffElement, pair[0], pair[1]);
+            blackhole.consume(diffElement);
+        }
+    }
+
+    @Benchmark
+    public void byIds(Blackhole blackhole) {
+        for (Element[] pair : encodedPairs) {
+            DiffElement diffElement = new DiffElement();
+            ElementsComparator.compareProperties(diffElement, pair[0], pair[1]);
+            blackhole.consume(diffElement);
+        }
+    }
+
+    private static Element encode(Element element, PropertyDictionary dictionary) {
+        HashMap<String, Element> elements = new HashMap<>();
+        elements.put("element", element);
+
+        return ElementsCache.encode(elements, dictionary).get("element");
+    }
+}
\ No newline at end of file
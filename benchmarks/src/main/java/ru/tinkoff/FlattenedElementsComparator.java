@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ru.tinkoff.objects.DiffElement;
+import ru.tinkoff.objects.Element;
+import ru.tinkoff.objects.Result;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.fasterxml.jackson.annotation.JsonInclude.Include.NON_NULL;
+import static com.fasterxml.jackson.databind.DeserializationFeature.*;
+import static com.fasterxml.jackson.databind.SerializationFeature.FAIL_ON_EMPTY_BEANS;
+import static com.fasterxml.jackson.databind.SerializationFeature.WRITE_DATES_AS_TIMESTAMPS;
+import static com.github.wnameless.json.flattener.JsonFlattener.flattenAsMap;
+import static com.google.common.collect.Sets.difference;
+import static com.google.common.collect.Sets.intersection;
+import static org.apache.commons.lang3.StringUtils.substringAfter;
+import static ru.tinkoff.ElementsComparator.IGNORE_ATTRIBUTES;
+import static ru.tinkoff.ElementsComparator.IGNORE_CSS;
+
+/*
+ * Comparison of displayed elements properties before ElementsComparator.compareProperties:
+ * elements are serialized to json and flattened, flattened keys are compared.
+ * Kept as the baseline for benchmarks and for the equivalence test of compareProperties.
+ */
+public class FlattenedElementsComparator {
+
+    public static void compareProperties(DiffElement diffElement, Element actualElement, Element expectedElement) {
+        Map<String, Object> actualFlatten = toFlattenMap(actualElement);
+        Map<String, Object> expectedFlatten = toFlattenMap(expectedElement);
+
+        Set<String> actualKeys = actualFlatten.keySet();
+        Set<String> expectedKeys = expectedFlatten.keySet();
+
+        Set<String> notEqual = new HashSet<>(intersection(actualKeys, expectedKeys));
+        if (!notEqual.isEmpty()) {
+            Set<String> equalKeys = new HashSet<>();
+            for (String k : notEqual) {
+                if (actualFlatten.get(k).equals(expectedFlatten.get(k))) {
+                    equalKeys.add(k);
+                }
+            }
+            notEqual.removeAll(equalKeys);
+
+            if (!notEqual.isEmpty()) {
+                if (notEqual.contains("area.left") ||
+                        notEqual.contains("area.top") ||
+                        notEqual.contains("area.right") ||
+                        notEqual.contains("area.bottom")) {
+                    diffElement.addDiff("moved");
+                }
+
+                if (notEqual.contains("area.width") || notEqual.contains("area.height")) {
+                    diffElement.addDiff("resized");
+                }
+
+                if (notEqual.contains("text")) {
+                    diffElement.addDiff("text");
+                    diffElement.setText(new Result(actualElement.getText(), expectedElement.getText()));
+                }
+            }
+        }
+
+        Set<String> added = new HashSet<>(difference(actualKeys, expectedKeys));
+        Set<String> removed = new HashSet<>(difference(expectedKeys, actualKeys));
+
+        Set<String> all = new HashSet<>();
+        if (!notEqual.isEmpty()) {
+            all.addAll(notEqual);
+        }
+
+        if (!added.isEmpty()) {
+            all.addAll(added);
+        }
+
+        if (!removed.isEmpty()) {
+            all.addAll(removed);
+        }
+
+        HashMap<String, Result> cssDiff = new HashMap<>();
+        Set<String> css = all.stream().filter(n -> n.startsWith("css.")).collect(Collectors.toCollection(HashSet::new));
+        if (!css.isEmpty()) {
+            for (String k : css) {
+                String name = substringAfter(k, "css.");
+                if (!IGNORE_CSS.contains(name)) {
+                    if (notEqual.contains(k)) {
+                        cssDiff.put(name, new Result(actualFlatten.get(k), expectedFlatten.get(k)));
+                    } else if (added.contains(k)) {
+                        cssDiff.put(name, new Result("[value added]", expectedFlatten.get(k)));
+                    } else if (removed.contains(k)) {
+                        cssDiff.put(name, new Result("[value removed]", expectedFlatten.get(k)));
+                    }
+                }
+            }
+
+            if (cssDiff.size() > 0) {
+                diffElement.addDiff("css");
+                diffElement.setCss(cssDiff);
+            }
+        }
+
+        HashMap<String, Result> attDiff = new HashMap<>();
+        Set<String> attributes = all.stream().filter(n -> n.startsWith("attributes.")).collect(Collectors.toCollection(HashSet::new));
+        if (!attributes.isEmpty()) {
+            for (String k : attributes) {
+                String name = substringAfter(k, "attributes.");
+                if (!IGNORE_ATTRIBUTES.contains(name)) {
+                    if (notEqual.contains(k)) {
+                        attDiff.put(name, new Result(actualFlatten.get(k), expectedFlatten.get(k)));
+                    } else if (added.contains(k)) {
+                        attDiff.put(name, new Result("[value added]", expectedFlatten.get(k)));
+                    } else if (removed.contains(k)) {
+                        attDiff.put(name, new Result("[value removed]", expectedFlatten.get(k)));
+                    }
+                }
+            }
+
+            if (attDiff.size() > 0) {
+                diffElement.addDiff("attributes");
+                diffElement.setAttributes(attDiff);
+            }
+        }
+    }
+
+    private static ObjectMapper createJsonMapper() {
+        return new ObjectMapper()
+                .disable(FAIL_ON_UNKNOWN_PROPERTIES)
+                .disable(FAIL_ON_EMPTY_BEANS)
+                .enable(ACCEPT_EMPTY_ARRAY_AS_NULL_OBJECT)
+                .enable(ACCEPT_SINGLE_VALUE_AS_ARRAY)
+                .setSerializationInclusion(NON_NULL)
+                .configure(WRITE_DATES_AS_TIMESTAMPS, false);
+    }
+
+    private static Map<String, Object> toFlattenMap(Object pojo) {
+        try {
+            return flattenAsMap(createJsonMapper().writeValueAsString(pojo));
+        } catch (JsonProcessingException e) {
+            throw new AssertionError(e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+
+import ru.tinkoff.objects.Element;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static com.google.common.collect.ObjectArrays.concat;
+
+/*
+ * Pairs of actual and expected elements for comparison of properties.
+ * Expected element is a copy of actual one with random changes, so most properties are equal like on real pages.
+ */
+public class RandomElements {
+
+    private static final String[] CSS = {"color", "background-color", "display", "font-size", "line-height", "margin", "padding", "width"};
+    private static final String[] ATTRIBUTES = {"class", "href", "title", "role", "id", "data-qa-file"};
+    private static final String[] DOTTED_NAMES = {"font.family", "data.value"};
+    private static final String[] VALUES = {"0", "1px", "16px", "auto", "none", "red", "rgb(0, 0, 0)", ""};
+    private static final String[] TEXTS = {null, "", "Text", "Other text"};
+    private static final double[] COORDINATES = {0, 10, 20.5};
+    private static final double[] SIZES = {100, 200};
+
+    private static final double CHANGE_PROBABILITY = 0.1;
+
+    private final Random random;
+    private final String[] css;
+    private final String[] attributes;
+
+    /*
+     * Names with dots are flattened to keys in brackets, so they were not compared by flattening.
+     */
+    public RandomElements(long seed, boolean dottedNames) {
+        this.random = new Random(seed);
+        this.css = dottedNames ? concat(CSS, DOTTED_NAMES, String.class) : CSS;
+        this.attributes = dottedNames ? concat(ATTRIBUTES, DOTTED_NAMES, String.class) : ATTRIBUTES;
+    }
+
+    public Element[] nextPair() {
+        Element actual = nextElement();
+        Element expected = new Element();
+
+        expected.setDisplay(actual.getDisplay());
+        expected.setText(isChanged() ? next(TEXTS) : actual.getText());
+        expected.setCss(change(actual.getCss(), css));
+        expected.setAttributes(change(actual.getAttributes(), attributes));
+
+        Element.Area area = actual.getArea();
+        double left = isChanged() ? next(COORDINATES) : area.getLeft();
+        double top = isChanged() ? next(COORDINATES) : area.getTop();
+        double width = isChanged() ? next(SIZES) : area.getWidth();
+        double height = isChanged() ? next(SIZES) : area.getHeight();
+        expected.setArea(new Element.Area(left, top, left + width, top + height, width, height));
+
+        return new Element[]{actual, expected};
+    }
+
+    private Element nextElement() {
+        Element element = new Element();
+        element.setDisplay("block");
+        element.setText(next(TEXTS));
+        element.setCss(nextValues(css));
+        element.setAttributes(nextValues(attributes));
+
+        double left = next(COORDINATES);
+        double top = next(COORDINATES);
+        double width = next(SIZES);
+        double height = next(SIZES);
+        element.setArea(new Element.Area(left, top, left + width, top + height, width, height));
+
+        return element;
+    }
+
+    private HashMap<String, String> nextValues(String[] names) {
+        HashMap<String, String> values = new HashMap<>();
+        for (String name : names) {
+            if (random.nextBoolean()) {
+                values.put(name, next(VALUES));
+            }
+        }
+
+        return values;
+    }
+
+    /*
+     * Values are changed, added or removed.
+     */
+    private HashMap<String, String> change(HashMap<String, String> values, String[] names) {
+        HashMap<String, String> changed = new HashMap<>(values);
+        for (String name : names) {
+            if (isChanged()) {
+                changed.put(name, next(VALUES));
+            } else if (isChanged()) {
+                changed.remove(name);
+            }
+        }
+
+        return changed;
+    }
+
+    private boolean isChanged() {
+        return random.nextDouble() < CHANGE_PROBABILITY;
+    }
+
+    private String next(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private double next(double[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
\ No newline at end of file
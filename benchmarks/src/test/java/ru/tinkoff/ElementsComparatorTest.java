@@ -0,0 +1,155 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.testng.annotations.Test;
+import ru.tinkoff.objects.DiffElement;
+import ru.tinkoff.objects.Element;
+import ru.tinkoff.objects.Result;
+
+import java.util.HashMap;
+
+import static com.fasterxml.jackson.databind.SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ElementsComparatorTest {
+
+    private static final int PAIRS_COUNT = 10000;
+
+    private static final ObjectMapper mapper = new ObjectMapper().enable(ORDER_MAP_ENTRIES_BY_KEYS);
+
+    @Test
+    public void comparePropertiesAsFlattenedJson() throws JsonProcessingException {
+        RandomElements randomElements = new RandomElements(1, false);
+
+        int changed = 0;
+        for (int i = 0; i < PAIRS_COUNT; i++) {
+            Element[] pair = randomElements.nextPair();
+
+            DiffElement flattened = new DiffElement();
+            FlattenedElementsComparator.compareProperties(flattened, pair[0], pair[1]);
+
+            DiffElement fieldByField = new DiffElement();
+            ElementsComparator.compareProperties(fieldByField, pair[0], pair[1]);
+
+            assertEquals(mapper.writeValueAsString(fieldByField), mapper.writeValueAsString(flattened),
+                    mapper.writeValueAsString(pair));
+
+            if (!flattened.getDiff().isEmpty()) {
+                changed++;
+            }
+        }
+
+        // Both equal and changed elements are compared
+        assertTrue(changed > 0 && changed < PAIRS_COUNT, "Changed elements: " + changed);
+    }
+
+    @Test
+    public void comparePropertiesByIds() throws JsonProcessingException {
+        RandomElements randomElements = new RandomElements(2, false);
+        PropertyDictionary dictionary = new PropertyDictionary(Integer.MAX_VALUE);
+
+        for (int i = 0; i < PAIRS_COUNT; i++) {
+            Element[] pair = randomElements.nextPair();
+            Element actual = encode(pair[0], dictionary);
+            Element expected = encode(pair[1], dictionary);
+            assertTrue(actual instanceof EncodedElement && expected instanceof EncodedElement);
+
+            DiffElement byValues = new DiffElement();
+            ElementsComparator.compareProperties(byValues, pair[0], pair[1]);
+
+            DiffElement byIds = new DiffElement();
+            ElementsComparator.compareProperties(byIds, actual, expected);
+
+            assertEquals(mapper.writeValueAsString(byIds), mapper.writeValueAsString(byValues),
+                    mapper.writeValueAsString(pair));
+        }
+    }
+
+    @Test
+    public void comparePropertiesOfDifferentDictionaries() throws JsonProcessingException {
+        RandomElements randomElements = new RandomElements(3, false);
+
+        for (int i = 0; i < PAIRS_COUNT / 10; i++) {
+            Element[] pair = randomElements.nextPair();
+            Element actual = encode(pair[0], new PropertyDictionary(Integer.MAX_VALUE));
+            Element expected = encode(pair[1], new PropertyDictionary(Integer.MAX_VALUE));
+
+            DiffElement byValues = new DiffElement();
+            ElementsComparator.compareProperties(byValues, pair[0], pair[1]);
+
+            DiffElement decoded = new DiffElement();
+            ElementsComparator.compareProperties(decoded, actual, expected);
+
+            assertEquals(mapper.writeValueAsString(decoded), mapper.writeValueAsString(byValues),
+                    mapper.writeValueAsString(pair));
+        }
+    }
+
+    @Test
+    public void encodeToFullDictionary() {
+        Element element = new Element();
+        element.getCss().put("color", "red");
+
+        assertNull(encodeAll(element, new PropertyDictionary(2)));
+    }
+
+    @Test
+    public void comparePropertiesWithDots() {
+        Element actual = new Element();
+        actual.getCss().put("font.family", "Arial");
+        actual.getAttributes().put("data.value", "1");
+
+        Element expected = new Element();
+        expected.getCss().put("font.family", "Helvetica");
+
+        DiffElement flattened = new DiffElement();
+        FlattenedElementsComparator.compareProperties(flattened, actual, expected);
+
+        DiffElement fieldByField = new DiffElement();
+        ElementsComparator.compareProperties(fieldByField, actual, expected);
+
+        assertTrue(flattened.getDiff().isEmpty(), "Names with dots are skipped by flattening");
+
+        Result css = fieldByField.getCss().get("font.family");
+        assertEquals(css.getActual(), "Arial");
+        assertEquals(css.getExpected(), "Helvetica");
+
+        Result attribute = fieldByField.getAttributes().get("data.value");
+        assertEquals(attribute.getActual(), "[value added]");
+        assertEquals(attribute.getExpected(), null);
+    }
+
+    private static Element encode(Element element, PropertyDictionary dictionary) {
+        return encodeAll(element, dictionary).get("element");
+    }
+
+    private static HashMap<String, Element> encodeAll(Element element, PropertyDictionary dictionary) {
+        HashMap<String, Element> elements = new HashMap<>();
+        elements.put("element", element);
+
+        return ElementsCache.encode(elements, dictionary);
+    }
+}
\ No newline at end of file
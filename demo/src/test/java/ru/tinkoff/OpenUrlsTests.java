@@ -20,6 +20,7 @@ package ru.tinkoff;
  */
 
 import org.openqa.selenium.WebDriver;
+import org.testng.annotations.AfterClass;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
@@ -30,6 +31,7 @@ import java.util.List;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static ru.tinkoff.ParserUtils.readLines;
+import static ru.tinkoff.SnapShoter.awaitUploads;
 import static ru.tinkoff.SnapShoter.snapshot;
 import static ru.tinkoff.WebDriverManager.closeDriver;
 import static ru.tinkoff.WebDriverManager.getDriver;
@@ -52,6 +54,11 @@ public class OpenUrlsTests {
         }
     }
 
+    @AfterClass(alwaysRun = true)
+    public void afterClass() {
+        awaitUploads();
+    }
+
     @Test(dataProvider = "urls")
     public void demo(String path, List<String> locators) throws Exception {
         driverPool.get().get(System.getProperty("domain") + path);
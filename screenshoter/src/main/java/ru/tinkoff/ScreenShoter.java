@@ -48,11 +48,36 @@ public class ScreenShoter {
 
     private static final int SCREEN_SCROLL_TIMEOUT = Integer.parseInt(System.getProperty("screen.scroll.timeout"));
     private static final int RESIZE_TIMEOUT = Integer.parseInt(System.getProperty("resize.timeout"));
+    private static final int RESIZE_STABLE_FRAMES = Integer.parseInt(System.getProperty("resize.stable.frames", "3"));
+
+    /*
+     * Resolves when size of viewport and document doesn't change during stable frames or after timeout.
+     */
+    private static final String WAIT_LAYOUT_SCRIPT = "var timeout = arguments[0];\n" +
+            "var stableFrames = arguments[1];\n" +
+            "var callback = arguments[arguments.length - 1];\n" +
+            "var start = Date.now();\n" +
+            "var lastSize = null;\n" +
+            "var stable = 0;\n" +
+            "function check() {\n" +
+            "    var element = document.documentElement;\n" +
+            "    var size = [window.innerWidth, window.innerHeight, element.scrollWidth, element.scrollHeight].join(\"x\");\n" +
+            "    stable = (size === lastSize) ? stable + 1 : 0;\n" +
+            "    lastSize = size;\n" +
+            "    if (stable >= stableFrames || Date.now() - start > timeout) {\n" +
+            "        callback(stable >= stableFrames);\n" +
+            "    } else {\n" +
+            "        window.requestAnimationFrame(check);\n" +
+            "    }\n" +
+            "}\n" +
+            "window.requestAnimationFrame(check);";
 
     private static final Logger logger = LoggerFactory.getLogger(ScreenShoter.class);
 
     public static void resizeBrowser(String resolution, WebDriver driver) {
         try {
+            boolean resized = false;
+
             if (DEVICE_NAME.isEmpty()) {
                 setDriverPosition(driver);
 
@@ -63,22 +88,45 @@ public class ScreenShoter {
                         java.awt.Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
                         driver.manage().window().setSize(new Dimension((int) screenSize.getWidth(), (int) screenSize.getHeight()));
                     }
+
+                    resized = true;
                 } else {
                     int width = parseInt(resolution.split("x")[0]);
 
                     if (parseInt(String.valueOf(((JavascriptExecutor) driver).executeScript("return window.outerWidth;"))) != width) {
                         driver.manage().window().setSize(new Dimension(width, parseInt(resolution.split("x")[1])));
+                        resized = true;
                     }
                 }
             }
 
-            // Timeout to update render of a web-page
-            MILLISECONDS.sleep(RESIZE_TIMEOUT);
+            if (resized) {
+                waitLayout(driver);
+            }
         } catch (Exception e) {
             logger.error("[resize browser]", e);
         }
     }
 
+    /*
+     * Waits to update render of a web-page after resizing, but not longer than resize timeout.
+     */
+    private static void waitLayout(WebDriver driver) throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        try {
+            ((JavascriptExecutor) driver).executeAsyncScript(WAIT_LAYOUT_SCRIPT, RESIZE_TIMEOUT, RESIZE_STABLE_FRAMES);
+        } catch (Exception e) {
+            // Drivers without async scripts or animation frames wait the whole timeout
+            logger.warn("[wait layout] " + e.getMessage());
+
+            long left = RESIZE_TIMEOUT - (System.currentTimeMillis() - start);
+            if (left > 0) {
+                MILLISECONDS.sleep(left);
+            }
+        }
+    }
+
     public BufferedImage takeScreen(boolean fullScreen, WebDriver driver) {
         try {
             moveTo(0, 0, driver);
@@ -19,6 +19,7 @@ package ru.tinkoff;
  * @author Snezhana Krass
  */
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.vavr.control.Try;
 import org.openqa.selenium.WebDriver;
 import org.slf4j.Logger;
@@ -29,16 +30,22 @@ import java.awt.image.BufferedImage;
 import java.time.Instant;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
 import static java.util.Objects.isNull;
 import static org.apache.commons.lang.RandomStringUtils.randomAlphanumeric;
 import static ru.tinkoff.HttpUtils.BACKEND_DOMAIN;
-import static ru.tinkoff.HttpUtils.post;
+import static ru.tinkoff.HttpUtils.postAsync;
 import static ru.tinkoff.ParserUtils.writeAsString;
 import static ru.tinkoff.ScreenShoter.resizeBrowser;
 import static ru.tinkoff.WebDriverCapabilities.*;
-import static ru.tinkoff.WebDriverUtils.getElements;
+import static ru.tinkoff.WebDriverUtils.captureElements;
 
 public class SnapShoter {
 
@@ -47,8 +54,27 @@ public class SnapShoter {
     public static final String SNAPSHOT_BRANCH = System.getProperty("branch");
     public static final String SNAPSHOT_COMMIT = System.getProperty("commit");
 
+    private static final int UPLOAD_THREADS = Integer.parseInt(System.getProperty("upload.threads", "2"));
+    private static final int UPLOAD_QUEUE_MB = Integer.parseInt(System.getProperty("upload.queue.mb", "512"));
+    private static final long UPLOAD_TIMEOUT = Long.parseLong(System.getProperty("upload.timeout", "300"));
+
     private static final Logger logger = LoggerFactory.getLogger(SnapShoter.class);
 
+    /*
+     * Screenshots are encoded and sent to the backend in background, so the browser is free for the next step
+     * as soon as pixels are captured. The queue is bounded by memory of screenshots in KB rather than by their count,
+     * because a full page screenshot can be larger than dozens of viewport ones. A full queue runs the upload in the test thread.
+     */
+    private static final ThreadPoolExecutor uploads = UPLOAD_THREADS > 0 ? createExecutor() : null;
+    private static final Semaphore uploadQueueKb = new Semaphore(UPLOAD_QUEUE_MB * 1024);
+    private static final AtomicInteger pendingUploads = new AtomicInteger();
+
+    static {
+        if (uploads != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(SnapShoter::awaitUploads));
+        }
+    }
+
     public static void snapshot(Object listLocators, Snapshot snapshot, WebDriver driver) {
         snapshot(listLocators, true, true, snapshot, driver);
     }
@@ -129,30 +155,86 @@ public class SnapShoter {
 
     private static void createSnapshot(String locators, boolean fullScreen, Snapshot snapshot, WebDriver driver) {
         try {
-            String elements = (locators != null && locators.length() > 0) ? getElements(locators, driver) : null;
-            String screenPath = uploadImage(fullScreen, snapshot.getDatetime(), driver);
+            if (locators != null && locators.length() > 0) {
+                captureElements(locators, snapshot, driver);
+            } else {
+                snapshot.setElements(null);
+                snapshot.setCssDefaults(null);
+            }
 
-            snapshot.setElements(elements);
-            snapshot.setUrl(screenPath);
+            BufferedImage screen = new ScreenShoter().takeScreen(fullScreen, driver);
+            String fileName = screen != null
+                    ? String.format("%s-%s.png", snapshot.getDatetime().toInstant().getEpochSecond(), randomAlphanumeric(10))
+                    : null;
 
+            snapshot.setUrl(fileName);
+
+            // Snapshot is reused for the next resolutions, so it is serialized before the upload
             Try<String> snapshotJson = writeAsString(snapshot);
             if (snapshotJson.isSuccess()) {
-                post(BACKEND_DOMAIN + "/snapshots/create", snapshotJson.get());
+                upload(fileName, screen, snapshotJson.get());
             }
         } catch (Exception e) {
             logger.error("[create snapshot]", e);
         }
     }
 
-    private static String uploadImage(boolean fullScreen, Date dateTime, WebDriver driver) {
-        String screenPath = null;
-        BufferedImage screen = new ScreenShoter().takeScreen(fullScreen, driver);
+    private static void upload(String fileName, BufferedImage screen, String snapshotJson) {
+        int sizeKb = getSizeKb(screen, snapshotJson);
+        boolean queued = uploads != null && UPLOAD_QUEUE_MB > 0 && uploadQueueKb.tryAcquire(sizeKb);
+        Executor executor = queued ? uploads : Runnable::run;
+
+        // Image and snapshot are stored by one request, so snapshot is never stored with a missing image
+        pendingUploads.incrementAndGet();
+        postAsync(BACKEND_DOMAIN + "/snapshots/upload", fileName, screen, snapshotJson, executor)
+                .whenComplete((response, t) -> {
+                    if (queued) {
+                        uploadQueueKb.release(sizeKb);
+                    }
+
+                    pendingUploads.decrementAndGet();
+                    if (t != null) {
+                        logger.error("[upload snapshot]", t);
+                    }
+                });
+    }
 
+    /*
+     * Waits until all taken snapshots are sent to the backend, it's required before to request a report.
+     */
+    public static void awaitUploads() {
+        try {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(UPLOAD_TIMEOUT);
+            while (pendingUploads.get() > 0 && System.currentTimeMillis() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("[await uploads]", e);
+        }
+    }
+
+    /*
+     * Pixels of a screenshot take 4 bytes until the image is encoded, json is counted by chars.
+     * A screenshot larger than the whole queue is queued alone.
+     */
+    private static int getSizeKb(BufferedImage screen, String snapshotJson) {
+        long bytes = snapshotJson.length() * 2L;
         if (screen != null) {
-            String fileName = String.format("%s-%s.png", dateTime.toInstant().getEpochSecond(), randomAlphanumeric(10));
-            screenPath = post(BACKEND_DOMAIN + "/upload/image", fileName, screen);
+            bytes += (long) screen.getWidth() * screen.getHeight() * 4;
         }
 
-        return screenPath;
+        return (int) Math.min(bytes / 1024 + 1, UPLOAD_QUEUE_MB * 1024L);
+    }
+
+    // The queue is bounded by uploadQueueKb
+    private static ThreadPoolExecutor createExecutor() {
+        return new ThreadPoolExecutor(UPLOAD_THREADS, UPLOAD_THREADS,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("snapshot-upload-%d")
+                        .setDaemon(true)
+                        .build());
     }
 }
\ No newline at end of file
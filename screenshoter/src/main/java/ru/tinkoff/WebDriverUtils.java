@@ -24,6 +24,11 @@ import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.interactions.Actions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.tinkoff.objects.Snapshot;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static ru.tinkoff.ParserUtils.readFile;
@@ -32,9 +37,55 @@ public class WebDriverUtils {
 
     private static final Logger logger = LoggerFactory.getLogger(WebDriverUtils.class);
 
+    /*
+     * full - to take all computed CSS values of web-elements,
+     * defaults - to take only values which differ from default values of element tag, default values are sent once per snapshot.
+     */
+    public static final String CSS_MODE = System.getProperty("css.mode", "full");
+    public static final String CSS_PROPERTIES = System.getProperty("css.properties", "");
+
+    /*
+     * Script of elements is installed into a page once as a function and next snapshots of the page only call it.
+     */
+    private static final String ELEMENTS_FUNCTION = "qvisualElements";
+    private static final String NOT_INSTALLED = "[not installed]";
+    private static final String INSTALL_ELEMENTS_SCRIPT = "window." + ELEMENTS_FUNCTION + " = function (locators, cssMode, cssProperties) {\n" +
+            readFile("getElements.js") + "\n};\n";
+    private static final String HIDE_ELEMENTS_SCRIPT = readFile("hideElements.js");
+
     public static String getElements(String elements, WebDriver driver) {
+        return (String) executeElementsScript(elements, "full", driver);
+    }
+
+    /*
+     * Sets web-elements and default CSS values of their tags for CSS mode "defaults".
+     */
+    public static void captureElements(String elements, Snapshot snapshot, WebDriver driver) {
+        Object result = executeElementsScript(elements, CSS_MODE, driver);
+
+        if (result instanceof List) {
+            List<?> values = (List<?>) result;
+            snapshot.setElements((String) values.get(0));
+            snapshot.setCssDefaults((String) values.get(1));
+        } else {
+            snapshot.setElements((String) result);
+            snapshot.setCssDefaults(null);
+        }
+    }
+
+    private static Object executeElementsScript(String elements, String cssMode, WebDriver driver) {
         try {
-            return (String) ((JavascriptExecutor) driver).executeScript("var locators = \"" + elements + "\";\n" + readFile("getElements.js"));
+            String callScript = "if (typeof window." + ELEMENTS_FUNCTION + " !== \"function\") {\n" +
+                    "    return \"" + NOT_INSTALLED + "\";\n" +
+                    "}\n" +
+                    "return window." + ELEMENTS_FUNCTION + "(\"" + elements + "\", \"" + cssMode + "\", " + makeCssProperties() + ");";
+
+            Object result = ((JavascriptExecutor) driver).executeScript(callScript);
+            if (NOT_INSTALLED.equals(result)) {
+                result = ((JavascriptExecutor) driver).executeScript(INSTALL_ELEMENTS_SCRIPT + callScript);
+            }
+
+            return result;
         } catch (Exception e) {
             logger.error("[execute script] getElements.js", e);
         }
@@ -42,6 +93,13 @@ public class WebDriverUtils {
         return null;
     }
 
+    private static String makeCssProperties() {
+        return Arrays.stream(CSS_PROPERTIES.replaceAll("\\s+", "").split(","))
+                .filter(p -> !p.isEmpty())
+                .map(p -> "\"" + p + "\"")
+                .collect(Collectors.joining(",", "[", "]"));
+    }
+
     public static void moveTo(int x, int y, WebDriver driver) {
         new Actions(driver).moveByOffset(x, y);
     }
@@ -51,7 +109,7 @@ public class WebDriverUtils {
             if (selectors != null && selectors.length() > 0) {
                 ((JavascriptExecutor) driver).executeScript("var displayNone = " + displayNone + ";\n" +
                         "var selectors = \"" + selectors + "\";\n" +
-                        readFile("hideElements.js"));
+                        HIDE_ELEMENTS_SCRIPT);
                 MILLISECONDS.sleep(100);
             }
         } catch (Exception e) {
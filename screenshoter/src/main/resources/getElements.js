@@ -1,10 +1,19 @@
+/*
+ * cssMode "full" - all computed properties,
+ * cssMode "defaults" - only properties which differ from default values of element tag (cssBase).
+ * cssProperties - allowlist of captured properties, empty to capture all of them.
+ */
 function getComputedCss(element) {
     var css = {};
-    var style = window.getComputedStyle(element, null);
+    var style = element.ownerDocument.defaultView.getComputedStyle(element, null);
 
     if (style) {
         for (var i = 0; i < style.length; i++) {
                 var name = style[i];
+                if (cssProperties.length > 0 && cssProperties.indexOf(name) < 0) {
+                    continue;
+                }
+
                 css[name] = style.getPropertyValue(name);
         }
     }
@@ -12,6 +21,43 @@ function getComputedCss(element) {
     return css;
 }
 
+var defaultsFrame = null;
+
+/*
+ * Default values are computed for the same tag in a blank iframe, so they are not affected by page styles.
+ * A detached document has no view to compute styles, so the frame is attached to the page and has to be created
+ * only after all page values are read (it changes sibling selectors and is seen by mutation observers).
+ */
+function getDefaultCss(tagName, cssDefaults) {
+    if (cssDefaults[tagName] === undefined) {
+        if (defaultsFrame === null) {
+            defaultsFrame = document.createElement("iframe");
+            defaultsFrame.style.cssText = "position: absolute; left: -10000px; top: 0; border: 0; visibility: hidden; "
+                + "width: " + window.innerWidth + "px; height: " + window.innerHeight + "px;";
+            // The page may have no body (frameset or a document without body)
+            document.documentElement.appendChild(defaultsFrame);
+        }
+
+        var frameDocument = defaultsFrame.contentDocument;
+        var defaultElement = frameDocument.createElement(tagName);
+        frameDocument.body.appendChild(defaultElement);
+
+        cssDefaults[tagName] = getComputedCss(defaultElement);
+
+        frameDocument.body.removeChild(defaultElement);
+    }
+
+    return cssDefaults[tagName];
+}
+
+function removeDefaultCss(css, defaults) {
+    for (var name in defaults) {
+        if (css[name] === defaults[name]) {
+            delete css[name];
+        }
+    }
+}
+
 function getAttributes(element) {
     var attributes = {};
 
@@ -135,19 +181,25 @@ function getElements() {
 
 function saveElementProperties() {
     var properties = {};
+    var cssDefaults = {};
 
     var elements = getElements(locators);
     for (const [name, element] of Object.entries(elements)) {
         var elementProperties = {};
 
         if (element !== "") {
-            var css = getComputedCss(element);
-            elementProperties.display = css.display;
+            var tagName = element.tagName.toLowerCase();
+
+            elementProperties.display = window.getComputedStyle(element, null).display;
             elementProperties.area = getArea(element);
-            elementProperties.css = css;
+            elementProperties.css = getComputedCss(element);
             elementProperties.attributes = getAttributes(element);
             elementProperties.text = getText(element);
 
+            if (cssMode === "defaults") {
+                elementProperties.cssBase = tagName;
+            }
+
             properties[name] = elementProperties;
         } else {
             elementProperties.display = "not found";
@@ -156,6 +208,26 @@ function saveElementProperties() {
         }
     }
 
+    // Defaults are removed after all page values are read, because the defaults frame is attached to the page
+    if (cssMode === "defaults") {
+        try {
+            for (const [name, elementProperties] of Object.entries(properties)) {
+                if (elementProperties.cssBase !== undefined) {
+                    removeDefaultCss(elementProperties.css, getDefaultCss(elementProperties.cssBase, cssDefaults));
+                }
+            }
+        } finally {
+            if (defaultsFrame !== null) {
+                defaultsFrame.parentNode.removeChild(defaultsFrame);
+                defaultsFrame = null;
+            }
+        }
+    }
+
+    if (cssMode === "defaults") {
+        return [JSON.stringify(properties), JSON.stringify(cssDefaults)];
+    }
+
     return JSON.stringify(properties);
 }
 
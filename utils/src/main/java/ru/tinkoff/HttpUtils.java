@@ -19,16 +19,19 @@ package ru.tinkoff;
  * @author Snezhana Krass
  */
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.vavr.control.Try;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
@@ -43,6 +46,13 @@ import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import static org.apache.http.Consts.UTF_8;
 import static org.apache.http.entity.ContentType.DEFAULT_BINARY;
@@ -53,12 +63,35 @@ public class HttpUtils {
     public static final String FRONTEND_DOMAIN = System.getProperty("frontend.domain");
     public static final String BACKEND_DOMAIN = System.getProperty("backend.domain");
 
+    private static final int MAX_CONNECTIONS = Integer.parseInt(System.getProperty("http.max.connections", "50"));
+    private static final int MAX_CONNECTIONS_PER_ROUTE = Integer.parseInt(System.getProperty("http.max.connections.per.route", "10"));
+    private static final int CONNECT_TIMEOUT = Integer.parseInt(System.getProperty("http.connect.timeout", "10000"));
+    private static final int SOCKET_TIMEOUT = Integer.parseInt(System.getProperty("http.socket.timeout", "60000"));
+    private static final boolean GZIP_REQUESTS = Boolean.parseBoolean(System.getProperty("http.gzip", "true"));
+
+    private static final ContentType GZIP = ContentType.create("application/gzip");
+
     private static final Logger logger = LoggerFactory.getLogger(HttpUtils.class);
 
+    // Shared keep-alive connections, responses are always consumed by the response handler to release connections
+    private static final CloseableHttpClient client = HttpClientBuilder.create()
+            .setConnectionManager(createConnectionManager())
+            .setDefaultRequestConfig(RequestConfig.custom()
+                    .setConnectTimeout(CONNECT_TIMEOUT)
+                    .setConnectionRequestTimeout(CONNECT_TIMEOUT)
+                    .setSocketTimeout(SOCKET_TIMEOUT)
+                    .build())
+            .evictIdleConnections(30, TimeUnit.SECONDS)
+            .build();
+
+    private static final ExecutorService asyncExecutor = Executors.newFixedThreadPool(MAX_CONNECTIONS_PER_ROUTE,
+            new ThreadFactoryBuilder()
+                    .setNameFormat("http-post-%d")
+                    .setDaemon(true)
+                    .build());
+
     public static String post(String url, String fileName, String json) {
         Try<String> uploadedFile = Try.of(() -> {
-            HttpClient client = HttpClientBuilder.create().build();
-
             HttpEntity entity = MultipartEntityBuilder
                     .create()
                     .setCharset(UTF_8)
@@ -66,20 +99,53 @@ public class HttpUtils {
                     .addBinaryBody("file", json.getBytes(UTF_8), ContentType.create(ContentType.TEXT_PLAIN.getMimeType(), UTF_8), fileName)
                     .build();
 
-            HttpPost httpPost = new HttpPost(url);
-            httpPost.setEntity(entity);
-
-            HttpResponse response = client.execute(httpPost);
-            return new BasicResponseHandler().handleResponse(response);
+            return execute(url, entity);
         }).onFailure(t -> logger.error("[POST json]", t));
 
         return (uploadedFile.isSuccess()) ? uploadedFile.get() : null;
     }
 
     public static String post(String url, String fileName, BufferedImage image) {
-        Try<String> uploadedFile = Try.of(() -> {
-            HttpClient client = HttpClientBuilder.create().build();
+        Try<String> uploadedFile = postImage(url, fileName, image).onFailure(t -> logger.error("[POST image]", t));
+
+        return (uploadedFile.isSuccess()) ? uploadedFile.get() : null;
+    }
+
+    public static String post(String url, String fileName, BufferedImage image, String snapshot) {
+        Try<String> uploadedFile = postImage(url, fileName, image, snapshot).onFailure(t -> logger.error("[POST image and snapshot]", t));
+
+        return (uploadedFile.isSuccess()) ? uploadedFile.get() : null;
+    }
+
+    public static void post(String url, String snapshot) {
+        postSnapshot(url, snapshot).onFailure(t -> logger.error("[POST snapshot]", t));
+    }
+
+    /*
+     * Futures are completed exceptionally if requests failed, failures are logged by callers.
+     */
+    public static CompletableFuture<String> postAsync(String url, String fileName, BufferedImage image) {
+        return postAsync(url, fileName, image, asyncExecutor);
+    }
+
+    public static CompletableFuture<String> postAsync(String url, String fileName, BufferedImage image, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> postImage(url, fileName, image).getOrElseThrow(CompletionException::new), executor);
+    }
+
+    public static CompletableFuture<String> postAsync(String url, String fileName, BufferedImage image, String snapshot, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> postImage(url, fileName, image, snapshot).getOrElseThrow(CompletionException::new), executor);
+    }
 
+    public static CompletableFuture<String> postAsync(String url, String snapshot) {
+        return postAsync(url, snapshot, asyncExecutor);
+    }
+
+    public static CompletableFuture<String> postAsync(String url, String snapshot, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> postSnapshot(url, snapshot).getOrElseThrow(CompletionException::new), executor);
+    }
+
+    private static Try<String> postImage(String url, String fileName, BufferedImage image) {
+        return Try.of(() -> {
             HttpEntity entity = MultipartEntityBuilder
                     .create()
                     .setCharset(UTF_8)
@@ -87,26 +153,57 @@ public class HttpUtils {
                     .addBinaryBody("file", getImageBytes(image), DEFAULT_BINARY, fileName)
                     .build();
 
-            HttpPost httpPost = new HttpPost(url);
-            httpPost.setEntity(entity);
+            return execute(url, entity);
+        });
+    }
 
-            HttpResponse response = client.execute(httpPost);
-            return new BasicResponseHandler().handleResponse(response);
-        }).onFailure(t -> logger.error("[POST image]", t));
+    private static Try<String> postImage(String url, String fileName, BufferedImage image, String snapshot) {
+        return Try.of(() -> {
+            MultipartEntityBuilder entity = MultipartEntityBuilder
+                    .create()
+                    .setCharset(UTF_8)
+                    .setMode(BROWSER_COMPATIBLE)
+                    .addBinaryBody("snapshot", GZIP_REQUESTS ? gzip(snapshot) : snapshot.getBytes(UTF_8),
+                            GZIP_REQUESTS ? GZIP : ContentType.APPLICATION_JSON, "snapshot.json");
 
-        return (uploadedFile.isSuccess()) ? uploadedFile.get() : null;
+            if (image != null) {
+                entity.addBinaryBody("file", getImageBytes(image), DEFAULT_BINARY, fileName);
+            }
+
+            return execute(url, entity.build());
+        });
     }
 
-    public static void post(String url, String snapshot) {
-        Try.of(() -> {
-            HttpClient client = HttpClientBuilder.create().build();
+    private static Try<String> postSnapshot(String url, String snapshot) {
+        return Try.of(() -> {
+            HttpEntity entity = new StringEntity(snapshot, "UTF-8");
+
+            return execute(url, GZIP_REQUESTS ? new GzipCompressingEntity(entity) : entity);
+        });
+    }
+
+    private static String execute(String url, HttpEntity entity) throws IOException {
+        HttpPost httpPost = new HttpPost(url);
+        httpPost.setEntity(entity);
+
+        return client.execute(httpPost, new BasicResponseHandler());
+    }
+
+    private static byte[] gzip(String json) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(baos)) {
+            gzip.write(json.getBytes(UTF_8));
+        }
+
+        return baos.toByteArray();
+    }
 
-            HttpPost httpPost = new HttpPost(url);
-            httpPost.setEntity(new StringEntity(snapshot, "UTF-8"));
+    private static PoolingHttpClientConnectionManager createConnectionManager() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
 
-            HttpResponse response = client.execute(httpPost);
-            return new BasicResponseHandler().handleResponse(response);
-        }).onFailure(t -> logger.error("[POST snapshot]", t));
+        return connectionManager;
     }
 
     public static void setTestRunResults(String testRunId, DiffReport diffReport, String url) {
@@ -39,6 +39,8 @@ public class ParserUtils {
 
     private static final Logger logger = LoggerFactory.getLogger(ParserUtils.class);
 
+    private static final ObjectMapper mapper = createMapper();
+
     public static <T> Try<T> parseJson(String json, TypeReference<T> type) {
         return (Try<T>) Try.of(() -> getMapper().readValue(json, type)).onFailure(t -> logger.error("[parse json]", t));
     }
@@ -47,7 +49,14 @@ public class ParserUtils {
         return Try.of(() -> getMapper().writeValueAsString(json)).onFailure(t -> logger.error("[write json]", t));
     }
 
+    /*
+     * ObjectMapper is thread-safe after configuration and caches serializers, so it's shared.
+     */
     public static ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    private static ObjectMapper createMapper() {
         ObjectMapper mapper = new ObjectMapper();
         mapper.disable(FAIL_ON_UNKNOWN_PROPERTIES);
         mapper.disable(FAIL_ON_EMPTY_BEANS);
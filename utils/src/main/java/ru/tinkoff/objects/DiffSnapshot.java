@@ -28,11 +28,14 @@ public class DiffSnapshot {
     private Result branch;
     private Result commit;
     private String pixels;
+    private Integer pixelsLeft;
+    private Integer pixelsTop;
     private String error;
     private Browser browser;
     private Float diffPercentage;
     private Result images;
     private List<DiffElement> elements;
+    private String triage;
 
     public DiffSnapshot() {
     }
@@ -172,6 +175,22 @@ public class DiffSnapshot {
         this.pixels = pixels;
     }
 
+    public Integer getPixelsLeft() {
+        return pixelsLeft;
+    }
+
+    public void setPixelsLeft(Integer pixelsLeft) {
+        this.pixelsLeft = pixelsLeft;
+    }
+
+    public Integer getPixelsTop() {
+        return pixelsTop;
+    }
+
+    public void setPixelsTop(Integer pixelsTop) {
+        this.pixelsTop = pixelsTop;
+    }
+
     public String getError() {
         return error;
     }
@@ -203,4 +222,12 @@ public class DiffSnapshot {
     public void setBrowser(Browser browser) {
         this.browser = browser;
     }
+
+    public String getTriage() {
+        return triage;
+    }
+
+    public void setTriage(String triage) {
+        this.triage = triage;
+    }
 }
\ No newline at end of file
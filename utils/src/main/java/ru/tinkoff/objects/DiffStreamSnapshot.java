@@ -0,0 +1,60 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff.objects;
+
+/*
+ * @author Snezhana Krass
+ */
+
+public class DiffStreamSnapshot {
+
+    private String story;
+    private String state;
+    private DiffSnapshot snapshot;
+
+    public DiffStreamSnapshot() {
+    }
+
+    public DiffStreamSnapshot(String story, String state, DiffSnapshot snapshot) {
+        this.story = story;
+        this.state = state;
+        this.snapshot = snapshot;
+    }
+
+    public String getStory() {
+        return story;
+    }
+
+    public void setStory(String story) {
+        this.story = story;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    public DiffSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public void setSnapshot(DiffSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+}
\ No newline at end of file
@@ -26,6 +26,7 @@ public class Element {
     private String display;
     private String text;
     private HashMap<String, String> css;
+    private String cssBase;
     private HashMap<String, String> attributes;
     private Area area;
 
@@ -131,6 +132,10 @@ public class Element {
         return css;
     }
 
+    public String getCssBase() {
+        return cssBase;
+    }
+
     public HashMap<String, String> getAttributes() {
         return attributes;
     }
@@ -151,6 +156,10 @@ public class Element {
         this.css = css;
     }
 
+    public void setCssBase(String cssBase) {
+        this.cssBase = cssBase;
+    }
+
     public void setAttributes(HashMap<String, String> attributes) {
         this.attributes = attributes;
     }
@@ -25,6 +25,7 @@ import java.util.Date;
 
 public class Snapshot {
 
+    private String id;
     private Date datetime;
 
     private String server;
@@ -36,7 +37,11 @@ public class Snapshot {
     private String state;
 
     private String elements;
+    private boolean withElements;
+    private String elementsDigest;
+    private String cssDefaults;
     private String url;
+    private String digest;
 
     private String device;
     private String osName;
@@ -56,6 +61,7 @@ public class Snapshot {
     }
 
     public Snapshot(Document dbObject) {
+        this.id = dbObject.getString("_id");
         this.server = dbObject.getString("server");
         this.branch = dbObject.getString("branch");
         this.commit = dbObject.getString("commit");
@@ -64,7 +70,13 @@ public class Snapshot {
         this.state = dbObject.getString("state");
         this.datetime = dbObject.getDate("datetime");
         this.elements = dbObject.getString("elements");
+        // Report aggregation doesn't fetch elements, but tells whether they exist
+        this.withElements = dbObject.containsKey("withElements") ?
+                dbObject.getBoolean("withElements") : elements != null && !elements.isEmpty();
+        this.elementsDigest = dbObject.getString("elementsDigest");
+        this.cssDefaults = dbObject.getString("cssDefaults");
         this.url = dbObject.getString("url");
+        this.digest = dbObject.getString("digest");
         this.device = dbObject.getString("device");
         this.osName = dbObject.getString("osName");
         this.osVersion = dbObject.getString("osVersion");
@@ -74,6 +86,14 @@ public class Snapshot {
         this.retina = dbObject.getBoolean("retina");
     }
 
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
     public String getHash() {
         return new StringBuilder()
                 .append(story).append("|&story&|")
@@ -149,6 +169,30 @@ public class Snapshot {
 
     public void setElements(String elements) {
         this.elements = elements;
+        this.withElements = elements != null && !elements.isEmpty();
+    }
+
+    /*
+     * True if the snapshot has elements, even if they aren't loaded.
+     */
+    public boolean hasElements() {
+        return withElements;
+    }
+
+    public String getElementsDigest() {
+        return elementsDigest;
+    }
+
+    public void setElementsDigest(String elementsDigest) {
+        this.elementsDigest = elementsDigest;
+    }
+
+    public String getCssDefaults() {
+        return cssDefaults;
+    }
+
+    public void setCssDefaults(String cssDefaults) {
+        this.cssDefaults = cssDefaults;
     }
 
     public String getUrl() {
@@ -159,6 +203,14 @@ public class Snapshot {
         this.url = url;
     }
 
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
     public String getDevice() {
         return device;
     }
@@ -0,0 +1,163 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import io.vavr.control.Try;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.tinkoff.objects.DiffElement;
+import ru.tinkoff.objects.DiffSnapshot;
+import ru.tinkoff.objects.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static com.google.common.hash.Hashing.sha256;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static org.apache.commons.io.FileUtils.forceMkdir;
+import static org.apache.commons.io.FileUtils.readFileToString;
+import static org.apache.commons.lang.StringUtils.substringAfterLast;
+import static ru.tinkoff.ParserUtils.parseJson;
+import static ru.tinkoff.ParserUtils.writeAsString;
+import static ru.tinkoff.ElementsComparator.getRoiMargin;
+import static ru.tinkoff.ReportsEviction.isExpired;
+import static ru.tinkoff.ReportsEviction.touch;
+import static ru.tinkoff.ScreensComparator.getComparisonSettings;
+import static ru.tinkoff.ScreensComparator.isSaving;
+import static ru.tinkoff.SnapshotApiService.REPORTS_PATH;
+
+/*
+ * Results of pixels and elements comparison of a pair of snapshots keyed by digests of their contents.
+ * A report of new dates reuses results of unchanged pairs instead of comparing them again.
+ * Results are removed by ReportsEviction with saved reports.
+ */
+public class ComparisonCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ComparisonCache.class);
+
+    public static final String COMPARISONS_PATH = REPORTS_PATH + "comparisons/";
+
+    public ComparisonCache() {
+        try {
+            forceMkdir(new File(COMPARISONS_PATH));
+        } catch (IOException e) {
+            logger.error("[create directory]", e);
+        }
+    }
+
+    /*
+     * Returns null if digests of images or elements are unknown (snapshots created before digests were stored).
+     */
+    public static String makeKey(Snapshot actual, Snapshot expected, boolean retina, int inaccuracy, boolean roi) {
+        if (actual.getDigest() == null || expected.getDigest() == null
+                || !hasElementsDigest(actual) || !hasElementsDigest(expected)) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder();
+        key.append(actual.getDigest())
+                .append("|").append(expected.getDigest())
+                .append("|").append(actual.getElementsDigest())
+                .append("|").append(expected.getElementsDigest())
+                .append("|").append(retina)
+                .append("|").append(inaccuracy)
+                .append("|").append(roi ? "roi" + getRoiMargin() : "page")
+                .append("|").append(getComparisonSettings());
+
+        return sha256().hashString(key.toString(), UTF_8).toString();
+    }
+
+    public DiffSnapshot get(String key) {
+        if (key == null) {
+            return null;
+        }
+
+        File file = new File(COMPARISONS_PATH + key + ".json");
+        if (!file.exists() || isExpired(file)) {
+            return null;
+        }
+
+        try {
+            Try<DiffSnapshot> comparison = parseJson(readFileToString(file, "UTF-8"), new TypeReference<DiffSnapshot>() {});
+            if (comparison.isSuccess() && hasImages(comparison.get())) {
+                touch(file);
+                return comparison.get();
+            }
+        } catch (Exception e) {
+            logger.error("[comparison cache] " + key, e);
+        }
+
+        return null;
+    }
+
+    public void put(String key, DiffSnapshot comparison) {
+        if (key == null) {
+            return;
+        }
+
+        try {
+            Try<String> json = writeAsString(comparison);
+            if (json.isSuccess()) {
+                File temp = new File(COMPARISONS_PATH + key + ".tmp");
+                Files.write(temp.toPath(), json.get().getBytes(UTF_8));
+                Files.move(temp.toPath(), Paths.get(COMPARISONS_PATH, key + ".json"), ATOMIC_MOVE);
+                ReportsEviction.register(new File(COMPARISONS_PATH + key + ".json"), json.get());
+            }
+        } catch (Exception e) {
+            logger.error("[comparison cache] " + key, e);
+        }
+    }
+
+    private static boolean hasElementsDigest(Snapshot snapshot) {
+        return snapshot.getElementsDigest() != null || !snapshot.hasElements();
+    }
+
+    /*
+     * Diff images of the cached result could be removed with old reports.
+     */
+    private static boolean hasImages(DiffSnapshot comparison) {
+        if (!imageExists(comparison.getPixels())) {
+            return false;
+        }
+
+        if (comparison.getElements() != null) {
+            for (DiffElement element : comparison.getElements()) {
+                if (!imageExists(element.getImage())) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean imageExists(String url) {
+        if (url == null) {
+            return true;
+        }
+
+        String fileName = substringAfterLast(url, "/");
+        return isSaving(fileName) || new File(REPORTS_PATH + fileName).exists();
+    }
+}
\ No newline at end of file
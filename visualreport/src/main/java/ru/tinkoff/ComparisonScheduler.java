@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+/*
+ * Shared executors of comparison stages for all reports:
+ * DECODE - snapshot comparison task which holds decoded screenshots, sized by native memory,
+ * PIXELS - tiles of full-page pixels comparison,
+ * ELEMENTS - elements comparison,
+ * ENCODE - saving of diff images.
+ *
+ * Stage queues are bounded, a full queue runs the task in the submitting thread to slow down the producer.
+ * Tasks only wait for tasks of the next stages, so stages never wait for themselves.
+ */
+public class ComparisonScheduler {
+
+    public enum Stage {
+        DECODE, PIXELS, ELEMENTS, ENCODE
+    }
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final long NATIVE_MEMORY_MB = Long.parseLong(System.getProperty("compare.native.memory.mb", "4096"));
+    private static final long IMAGE_MEMORY_MB = Long.parseLong(System.getProperty("compare.image.memory.mb", "256"));
+    private static final int QUEUE_SIZE = Integer.parseInt(System.getProperty("compare.queue.size", "1000"));
+
+    private static final Map<Stage, ThreadPoolExecutor> executors = new EnumMap<>(Stage.class);
+
+    static {
+        // Each snapshot comparison holds actual and expected decoded screenshots
+        int decodeThreads = (int) max(1, min(CORES, NATIVE_MEMORY_MB / (2 * IMAGE_MEMORY_MB)));
+
+        executors.put(Stage.DECODE, createExecutor(Stage.DECODE, threads("compare.decode.threads", decodeThreads)));
+        executors.put(Stage.PIXELS, createExecutor(Stage.PIXELS, threads("compare.pixels.threads", CORES)));
+        executors.put(Stage.ELEMENTS, createExecutor(Stage.ELEMENTS, threads("compare.elements.threads", CORES)));
+        executors.put(Stage.ENCODE, createExecutor(Stage.ENCODE, threads("compare.encode.threads", max(1, CORES / 2))));
+    }
+
+    public static <T> Future<T> submit(Stage stage, Callable<T> task) {
+        return executors.get(stage).submit(task);
+    }
+
+    public static Future<?> submit(Stage stage, Runnable task) {
+        return executors.get(stage).submit(task);
+    }
+
+    public static List<StageStats> getStats() {
+        List<StageStats> stats = new ArrayList<>();
+        executors.forEach((stage, executor) -> stats.add(new StageStats(stage, executor)));
+
+        return stats;
+    }
+
+    private static int threads(String property, int defaultThreads) {
+        return Integer.parseInt(System.getProperty(property, String.valueOf(defaultThreads)));
+    }
+
+    private static ThreadPoolExecutor createExecutor(Stage stage, int threads) {
+        return new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("compare-" + stage.name().toLowerCase() + "-%d")
+                        .setDaemon(true)
+                        .build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public static class StageStats {
+
+        private String stage;
+        private int threads;
+        private int active;
+        private int queued;
+        private long completed;
+
+        public StageStats(Stage stage, ThreadPoolExecutor executor) {
+            this.stage = stage.name().toLowerCase();
+            this.threads = executor.getMaximumPoolSize();
+            this.active = executor.getActiveCount();
+            this.queued = executor.getQueue().size();
+            this.completed = executor.getCompletedTaskCount();
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getActive() {
+            return active;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+    }
+}
\ No newline at end of file
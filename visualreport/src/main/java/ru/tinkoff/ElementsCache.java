@@ -0,0 +1,242 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.vavr.control.Try;
+import org.bson.Document;
+import ru.tinkoff.objects.Element;
+import ru.tinkoff.objects.Snapshot;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import static ru.tinkoff.ParserUtils.parseJson;
+
+/*
+ * Parsed elements of snapshots keyed by snapshot id, so elements json of a snapshot is parsed once for all reports.
+ * Parsed elements are shared by comparisons and must not be changed.
+ *
+ * Names and values of css and attributes are encoded by ids of the shared dictionary: the same properties and mostly
+ * the same values repeat in all elements of all snapshots. Ids of all elements of a snapshot are stored in two int
+ * columns (see EncodedElement), so cached elements don't keep maps of strings and are compared by ids.
+ * When the dictionary is full, a new one is used for next snapshots and cached elements keep their dictionary.
+ */
+public class ElementsCache {
+
+    private static final int CACHE_SIZE = Integer.parseInt(System.getProperty("elements.cache.size", "2000"));
+
+    private static final int DICTIONARY_SIZE = Integer.parseInt(System.getProperty("elements.dictionary.size", "1000000"));
+
+    private static volatile PropertyDictionary dictionary = new PropertyDictionary(DICTIONARY_SIZE);
+
+    private final SnapshotStorage snapshotStorage;
+    private final Cache<String, HashMap<String, Element>> elements;
+
+    public ElementsCache(SnapshotStorage snapshotStorage) {
+        this.snapshotStorage = snapshotStorage;
+        this.elements = CacheBuilder.newBuilder()
+                .maximumSize(CACHE_SIZE)
+                .build();
+    }
+
+    /*
+     * Loads elements json of snapshots from report aggregation which elements are not cached yet, by one query.
+     */
+    public void load(Snapshot... snapshots) {
+        load(false, snapshots);
+    }
+
+    /*
+     * Loads elements json of snapshots even if their elements are cached, for comparison of json as is.
+     */
+    public void loadJson(Snapshot... snapshots) {
+        load(true, snapshots);
+    }
+
+    private void load(boolean json, Snapshot... snapshots) {
+        Map<String, Snapshot> notLoaded = new HashMap<>();
+        for (Snapshot snapshot : snapshots) {
+            if (snapshot.getId() != null && snapshot.hasElements() && snapshot.getElements() == null
+                    && (json || elements.getIfPresent(snapshot.getId()) == null)) {
+                notLoaded.put(snapshot.getId(), snapshot);
+            }
+        }
+
+        if (notLoaded.isEmpty()) {
+            return;
+        }
+
+        for (Document document : snapshotStorage.findElements(notLoaded.keySet())) {
+            Snapshot snapshot = notLoaded.get(document.getString("_id"));
+            snapshot.setElements(document.getString("elements"));
+            snapshot.setCssDefaults(document.getString("cssDefaults"));
+        }
+    }
+
+    /*
+     * Returns null if elements json could not be parsed.
+     */
+    public HashMap<String, Element> get(Snapshot snapshot) {
+        if (snapshot.getId() == null) {
+            return parse(snapshot).getOrNull();
+        }
+
+        try {
+            return elements.get(snapshot.getId(), () -> parse(snapshot).get());
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            // Parse error is logged by ParserUtils
+            return null;
+        }
+    }
+
+    public void invalidate(String id) {
+        elements.invalidate(id);
+    }
+
+    private static Try<HashMap<String, Element>> parse(Snapshot snapshot) {
+        Try<HashMap<String, Element>> elements = parseJson(snapshot.getElements(), new TypeReference<HashMap<String, Element>>() {});
+
+        if (elements.isSuccess() && snapshot.getCssDefaults() != null) {
+            Try<HashMap<String, HashMap<String, String>>> cssDefaults = parseJson(snapshot.getCssDefaults(),
+                    new TypeReference<HashMap<String, HashMap<String, String>>>() {});
+            if (cssDefaults.isFailure()) {
+                return Try.failure(cssDefaults.getCause());
+            }
+
+            elements.get().values().forEach(element -> restoreCss(element, cssDefaults.get()));
+        }
+
+        return elements.map(ElementsCache::encode);
+    }
+
+    /*
+     * Elements captured in CSS mode "defaults" contain only values which differ from default values of their tag.
+     */
+    private static void restoreCss(Element element, HashMap<String, HashMap<String, String>> cssDefaults) {
+        HashMap<String, String> defaults = (element.getCssBase() != null) ? cssDefaults.get(element.getCssBase()) : null;
+
+        if (defaults != null) {
+            HashMap<String, String> css = new HashMap<>(defaults);
+            if (element.getCss() != null) {
+                css.putAll(element.getCss());
+            }
+
+            element.setCss(css);
+        }
+    }
+
+    /*
+     * Elements are kept as parsed if they could not be encoded even by a new dictionary.
+     */
+    private static HashMap<String, Element> encode(HashMap<String, Element> elements) {
+        PropertyDictionary current = dictionary;
+        HashMap<String, Element> encoded = encode(elements, current);
+
+        if (encoded == null) {
+            synchronized (ElementsCache.class) {
+                if (dictionary == current) {
+                    dictionary = new PropertyDictionary(DICTIONARY_SIZE);
+                }
+
+                current = dictionary;
+            }
+
+            encoded = encode(elements, current);
+        }
+
+        return (encoded != null) ? encoded : elements;
+    }
+
+    /*
+     * Returns null if the dictionary is full.
+     */
+    static HashMap<String, Element> encode(HashMap<String, Element> elements, PropertyDictionary dictionary) {
+        int size = 0;
+        for (Element element : elements.values()) {
+            size += size(element.getCss()) + size(element.getAttributes());
+        }
+
+        int[] names = new int[size];
+        int[] values = new int[size];
+        HashMap<String, Element> encoded = new HashMap<>(elements.size() * 4 / 3 + 1);
+
+        int offset = 0;
+        for (Map.Entry<String, Element> entry : elements.entrySet()) {
+            Element element = entry.getValue();
+
+            int cssFrom = offset;
+            int attributesFrom = put(element.getCss(), dictionary, names, values, cssFrom);
+            if (attributesFrom < 0) {
+                return null;
+            }
+
+            offset = put(element.getAttributes(), dictionary, names, values, attributesFrom);
+            if (offset < 0) {
+                return null;
+            }
+
+            encoded.put(entry.getKey(), new EncodedElement(element, dictionary, names, values, cssFrom, attributesFrom, offset));
+        }
+
+        return encoded;
+    }
+
+    /*
+     * Writes ids of properties sorted by name id from the offset.
+     * Returns the next offset or -1 if the dictionary is full.
+     */
+    private static int put(Map<String, String> properties, PropertyDictionary dictionary, int[] names, int[] values, int offset) {
+        if (properties == null) {
+            return offset;
+        }
+
+        long[] pairs = new long[properties.size()];
+        int count = 0;
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            int name = dictionary.id(property.getKey());
+            int value = dictionary.id(property.getValue());
+            if (name < 0 || value < 0) {
+                return -1;
+            }
+
+            pairs[count++] = ((long) name << 32) | value;
+        }
+
+        Arrays.sort(pairs);
+        for (long pair : pairs) {
+            names[offset] = (int) (pair >>> 32);
+            values[offset] = (int) pair;
+            offset++;
+        }
+
+        return offset;
+    }
+
+    private static int size(Map<String, String> properties) {
+        return (properties != null) ? properties.size() : 0;
+    }
+}
\ No newline at end of file
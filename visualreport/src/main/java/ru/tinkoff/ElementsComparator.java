@@ -19,10 +19,9 @@ package ru.tinkoff;
  * @author Snezhana Krass
  */
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import javafx.util.Pair;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.tinkoff.objects.DiffElement;
@@ -31,20 +30,15 @@ import ru.tinkoff.objects.Element;
 import ru.tinkoff.objects.Result;
 
 import java.util.*;
-import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
-import java.util.stream.Collectors;
 
-import static com.fasterxml.jackson.annotation.JsonInclude.Include.NON_NULL;
-import static com.fasterxml.jackson.databind.DeserializationFeature.*;
-import static com.fasterxml.jackson.databind.SerializationFeature.FAIL_ON_EMPTY_BEANS;
-import static com.fasterxml.jackson.databind.SerializationFeature.WRITE_DATES_AS_TIMESTAMPS;
-import static com.github.wnameless.json.flattener.JsonFlattener.flattenAsMap;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Sets.difference;
 import static com.google.common.collect.Sets.intersection;
 import static java.util.Arrays.asList;
-import static org.apache.commons.lang3.StringUtils.substringAfter;
+import static java.util.Comparator.comparing;
+import static ru.tinkoff.ComparisonScheduler.Stage.ELEMENTS;
+import static ru.tinkoff.ComparisonScheduler.submit;
 import static ru.tinkoff.HttpUtils.BACKEND_DOMAIN;
 import static ru.tinkoff.ScreensComparator.compareScreens;
 import static ru.tinkoff.objects.Displayed.*;
@@ -53,12 +47,15 @@ public class ElementsComparator {
 
     private static final Logger logger = LoggerFactory.getLogger(ElementsComparator.class);
 
-    private static final ForkJoinPool elementsThreadsPool = new ForkJoinPool(100);
+    /*
+     * Margin in CSS pixels around the union of elements areas for the region of interest comparison.
+     */
+    private static final int ROI_MARGIN = Integer.parseInt(System.getProperty("compare.roi.margin", "20"));
 
-    private static final Set<String> IGNORE_CSS = new HashSet<String>() {{
+    static final Set<String> IGNORE_CSS = new HashSet<String>() {{
     }};
 
-    private static final Set<String> IGNORE_ATTRIBUTES = new HashSet<String>() {{
+    static final Set<String> IGNORE_ATTRIBUTES = new HashSet<String>() {{
         add("id");
         add("data-reactid");
         add("data-qa-file");
@@ -68,8 +65,8 @@ public class ElementsComparator {
     public static List<DiffElement> compare(boolean image,
                                             HashMap<String, Element> actual,
                                             HashMap<String, Element> expected,
-                                            Mat actualImage,
-                                            Mat expectedImage,
+                                            ImageSource actualImage,
+                                            ImageSource expectedImage,
                                             boolean isRetina,
                                             int inaccuracy,
                                             StringBuffer error) {
@@ -79,13 +76,21 @@ public class ElementsComparator {
 
             Set<String> intersectionNames = intersection(actual.keySet(), expected.keySet());
             if (!intersectionNames.isEmpty()) {
+                // Regions are read in order of elements on the page, so each band of screenshots is decoded once
+                List<String> sortedNames = newArrayList(intersectionNames);
+                sortedNames.sort(comparing(elementName -> getTop(actual.get(elementName))));
+
                 List<Future<?>> futureList = new LinkedList<>();
-                for (String elementName : intersectionNames) {
-                    futureList.add(elementsThreadsPool.submit(() -> {
-                        Element actualElement = actual.get(elementName);
-                        Element expectedElement = expected.get(elementName);
-                        Displayed displayed = assertDisplay(actualElement, expectedElement, actualImage, expectedImage, isRetina);
+                for (String elementName : sortedNames) {
+                    Element actualElement = actual.get(elementName);
+                    Element expectedElement = expected.get(elementName);
+                    Displayed displayed = assertDisplay(actualElement, expectedElement, actualImage, expectedImage, isRetina);
+
+                    Pair<Mat, Mat> regions = (image && displayed == DISPLAYED)
+                            ? readRegions(actualImage, expectedImage, actualElement.getArea(), expectedElement.getArea(), isRetina, error)
+                            : null;
 
+                    futureList.add(submit(ELEMENTS, () -> {
                         DiffElement diffElement = new DiffElement();
                         diffElement.setName(elementName);
                         diffElement.setDisplay(displayed.name().toLowerCase().replaceAll("_", " "));
@@ -110,8 +115,8 @@ public class ElementsComparator {
                             case DISPLAYED: {
                                 diffElement.setArea(new DiffElement.Area(actualElement, expectedElement));
 
-                                if (image) {
-                                    Pair<Float, String> imageDiff = assertImage(actualImage, expectedImage,
+                                if (regions != null) {
+                                    Pair<Float, String> imageDiff = assertImage(regions,
                                             actualElement.getArea(), expectedElement.getArea(),
                                             isRetina,
                                             inaccuracy,
@@ -123,100 +128,7 @@ public class ElementsComparator {
                                     }
                                 }
 
-                                Map<String, Object> actualFlatten = toFlattenMap(actualElement);
-                                Map<String, Object> expectedFlatten = toFlattenMap(expectedElement);
-
-                                Set<String> actualKeys = actualFlatten.keySet();
-                                Set<String> expectedKeys = expectedFlatten.keySet();
-
-                                Set<String> notEqual = new HashSet<>(intersection(actualKeys, expectedKeys));
-                                if (!notEqual.isEmpty()) {
-                                    Set<String> equalKeys = new HashSet<>();
-                                    for (String k : notEqual) {
-                                        if (actualFlatten.get(k).equals(expectedFlatten.get(k))) {
-                                            equalKeys.add(k);
-                                        }
-                                    }
-                                    notEqual.removeAll(equalKeys);
-
-                                    if (!notEqual.isEmpty()) {
-                                        if (notEqual.contains("area.left") ||
-                                                notEqual.contains("area.top") ||
-                                                notEqual.contains("area.right") ||
-                                                notEqual.contains("area.bottom")) {
-                                            diffElement.addDiff("moved");
-                                        }
-
-                                        if (notEqual.contains("area.width") || notEqual.contains("area.height")) {
-                                            diffElement.addDiff("resized");
-                                        }
-
-                                        if (notEqual.contains("text")) {
-                                            diffElement.addDiff("text");
-                                            diffElement.setText(new Result(actualElement.getText(), expectedElement.getText()));
-                                        }
-                                    }
-                                }
-
-                                Set<String> added = new HashSet<>(difference(actualKeys, expectedKeys));
-                                Set<String> removed = new HashSet<>(difference(expectedKeys, actualKeys));
-
-                                Set<String> all = new HashSet<>();
-                                if (!notEqual.isEmpty()) {
-                                    all.addAll(notEqual);
-                                }
-
-                                if (!added.isEmpty()) {
-                                    all.addAll(added);
-                                }
-
-                                if (!removed.isEmpty()) {
-                                    all.addAll(removed);
-                                }
-
-                                HashMap<String, Result> cssDiff = new HashMap<>();
-                                Set<String> css = all.stream().filter(n -> n.startsWith("css.")).collect(Collectors.toCollection(HashSet::new));
-                                if (!css.isEmpty()) {
-                                    for (String k : css) {
-                                        String name = substringAfter(k, "css.");
-                                        if (!IGNORE_CSS.contains(name)) {
-                                            if (notEqual.contains(k)) {
-                                                cssDiff.put(name, new Result(actualFlatten.get(k), expectedFlatten.get(k)));
-                                            } else if (added.contains(k)) {
-                                                cssDiff.put(name, new Result("[value added]", expectedFlatten.get(k)));
-                                            } else if (removed.contains(k)) {
-                                                cssDiff.put(name, new Result("[value removed]", expectedFlatten.get(k)));
-                                            }
-                                        }
-                                    }
-
-                                    if (cssDiff.size() > 0) {
-                                        diffElement.addDiff("css");
-                                        diffElement.setCss(cssDiff);
-                                    }
-                                }
-
-                                HashMap<String, Result> attDiff = new HashMap<>();
-                                Set<String> attributes = all.stream().filter(n -> n.startsWith("attributes.")).collect(Collectors.toCollection(HashSet::new));
-                                if (!attributes.isEmpty()) {
-                                    for (String k : attributes) {
-                                        String name = substringAfter(k, "attributes.");
-                                        if (!IGNORE_ATTRIBUTES.contains(name)) {
-                                            if (notEqual.contains(k)) {
-                                                attDiff.put(name, new Result(actualFlatten.get(k), expectedFlatten.get(k)));
-                                            } else if (added.contains(k)) {
-                                                attDiff.put(name, new Result("[value added]", expectedFlatten.get(k)));
-                                            } else if (removed.contains(k)) {
-                                                attDiff.put(name, new Result("[value removed]", expectedFlatten.get(k)));
-                                            }
-                                        }
-                                    }
-
-                                    if (attDiff.size() > 0) {
-                                        diffElement.addDiff("attributes");
-                                        diffElement.setAttributes(attDiff);
-                                    }
-                                }
+                                compareProperties(diffElement, actualElement, expectedElement);
 
                                 if (diffElement.getDiff().size() > 0) {
                                     diffElements.add(diffElement);
@@ -271,20 +183,39 @@ public class ElementsComparator {
         return newArrayList(diffElements.iterator());
     }
 
-    public static boolean isDisplayed(Element element, Mat image, boolean isRetina) {
+    /*
+     * Elements of equal snapshots can differ only by elements that are not found on both pages.
+     */
+    public static List<DiffElement> compareNotFound(HashMap<String, Element> elements) {
+        List<DiffElement> diffElements = new ArrayList<>();
+
+        elements.forEach((elementName, element) -> {
+            if ("not found".equals(element.getDisplay())) {
+                DiffElement diffElement = new DiffElement();
+                diffElement.setName(elementName);
+                diffElement.setDisplay(NOT_FOUND.name().toLowerCase().replaceAll("_", " "));
+
+                diffElements.add(diffElement);
+            }
+        });
+
+        return diffElements;
+    }
+
+    public static boolean isDisplayed(Element element, ImageSource image, boolean isRetina) {
         boolean isDisplayed = !element.getDisplay().equals("none") && element.getArea().getWidth() != 0 && element.getArea().getHeight() != 0;
 
         if (isDisplayed) {
             int index = (isRetina) ? 2 : 1;
 
-            isDisplayed = (element.getArea().getLeft() * index + element.getArea().getWidth() * index <= image.size().width) &&
-                    (element.getArea().getTop() * index + element.getArea().getHeight() * index <= image.size().height);
+            isDisplayed = (element.getArea().getLeft() * index + element.getArea().getWidth() * index <= image.getWidth()) &&
+                    (element.getArea().getTop() * index + element.getArea().getHeight() * index <= image.getHeight());
         }
 
         return isDisplayed;
     }
 
-    private static Displayed assertDisplay(Element actual, Element expected, Mat actualImage, Mat expectedImage, boolean isRetina) {
+    private static Displayed assertDisplay(Element actual, Element expected, ImageSource actualImage, ImageSource expectedImage, boolean isRetina) {
         if (expected.getDisplay().equals("not found")) {
             if (actual.getDisplay().equals("not found")) {
                 return NOT_FOUND;
@@ -315,20 +246,55 @@ public class ElementsComparator {
         }
     }
 
-    private static Pair<Float, String> assertImage(Mat actualImage, Mat expectedImage,
+    /*
+     * Only regions of elements are read from screenshots.
+     * Returns null if regions could not be read.
+     */
+    private static Pair<Mat, Mat> readRegions(ImageSource actualImage, ImageSource expectedImage,
+                                              Element.Area actualArea, Element.Area expectedArea,
+                                              boolean isRetina,
+                                              StringBuffer error) {
+        Mat actualRegion = null;
+
+        try {
+            actualRegion = actualImage.read(toRect(actualArea, isRetina));
+
+            return new Pair<>(actualRegion, expectedImage.read(toRect(expectedArea, isRetina)));
+        } catch (Exception e) {
+            if (actualRegion != null) {
+                actualRegion.release();
+            }
+
+            error.append(System.currentTimeMillis() + "Could not compare elements images: " + e.getMessage()).append("\n");
+            logger.error("[compare screens]", e);
+            return null;
+        }
+    }
+
+    /*
+     * Areas are moved to the origin of the regions, regions are released after comparison.
+     */
+    private static Pair<Float, String> assertImage(Pair<Mat, Mat> regions,
                                                    Element.Area actualArea, Element.Area expectedArea,
                                                    boolean isRetina,
                                                    int inaccuracy,
                                                    StringBuffer error) {
         try {
-            return compareScreens(actualImage, expectedImage, actualArea, expectedArea, true, isRetina, inaccuracy, error);
+            return compareScreens(regions.getKey(), regions.getValue(), toOrigin(actualArea), toOrigin(expectedArea), true, isRetina, inaccuracy, error);
         } catch (Exception e) {
             error.append(System.currentTimeMillis() + "Could not compare elements images: " + e.getMessage()).append("\n");
             logger.error("[compare screens]", e);
             return null;
+        } finally {
+            regions.getKey().release();
+            regions.getValue().release();
         }
     }
 
+    private static double getTop(Element element) {
+        return (element.getArea() != null && element.getArea().getTop() != null) ? element.getArea().getTop() : 0;
+    }
+
     public static Pair<Float, String> assertImage(Mat actualImage, Mat expectedImage,
                                                   boolean isRetina,
                                                   int inaccuracy,
@@ -342,6 +308,223 @@ public class ElementsComparator {
         }
     }
 
+    /*
+     * Margin of the region of interest, it changes a result of comparison in roi mode.
+     */
+    public static int getRoiMargin() {
+        return ROI_MARGIN;
+    }
+
+    /*
+     * Union of actual and expected elements areas with margin, clamped to the common part of both screenshots.
+     * Returns null if there are no displayed elements.
+     */
+    public static Element.Area getRegionOfInterest(HashMap<String, Element> actual,
+                                                   HashMap<String, Element> expected,
+                                                   ImageSource actualImage,
+                                                   ImageSource expectedImage,
+                                                   boolean isRetina) {
+        double left = Double.MAX_VALUE;
+        double top = Double.MAX_VALUE;
+        double right = 0;
+        double bottom = 0;
+
+        List<Element> elements = new ArrayList<>(actual.values());
+        elements.addAll(expected.values());
+
+        for (Element element : elements) {
+            Element.Area area = element.getArea();
+            if (area != null && area.getWidth() != null && area.getHeight() != null
+                    && area.getWidth() > 0 && area.getHeight() > 0) {
+                left = Math.min(left, area.getLeft());
+                top = Math.min(top, area.getTop());
+                right = Math.max(right, area.getLeft() + area.getWidth());
+                bottom = Math.max(bottom, area.getTop() + area.getHeight());
+            }
+        }
+
+        if (right == 0 || bottom == 0) {
+            return null;
+        }
+
+        int scale = isRetina ? 2 : 1;
+        int maxRight = Math.min(actualImage.getWidth(), expectedImage.getWidth()) / scale;
+        int maxBottom = Math.min(actualImage.getHeight(), expectedImage.getHeight()) / scale;
+
+        left = Math.max(0, Math.floor(left) - ROI_MARGIN);
+        top = Math.max(0, Math.floor(top) - ROI_MARGIN);
+        right = Math.min(maxRight, Math.ceil(right) + ROI_MARGIN);
+        bottom = Math.min(maxBottom, Math.ceil(bottom) + ROI_MARGIN);
+
+        if (right <= left || bottom <= top) {
+            return null;
+        }
+
+        return new Element.Area(left, top, right, bottom, right - left, bottom - top);
+    }
+
+    /*
+     * Area in CSS pixels to the rectangle of screenshot pixels, as areas are cropped by ScreensComparator.
+     */
+    public static Rect toRect(Element.Area area, boolean isRetina) {
+        int index = (isRetina) ? 2 : 1;
+
+        return new Rect(area.getLeft().intValue() * index, area.getTop().intValue() * index,
+                area.getWidth().intValue() * index, area.getHeight().intValue() * index);
+    }
+
+    private static Element.Area toOrigin(Element.Area area) {
+        return new Element.Area(0.0d, 0.0d, area.getWidth(), area.getHeight(), area.getWidth(), area.getHeight());
+    }
+
+    /*
+     * Compares area, text, css and attributes of displayed elements field by field.
+     * Values which are missing in one of elements are reported only for css and attributes.
+     */
+    static void compareProperties(DiffElement diffElement, Element actual, Element expected) {
+        Element.Area actualArea = actual.getArea();
+        Element.Area expectedArea = expected.getArea();
+
+        if (actualArea != null && expectedArea != null) {
+            if (isChanged(actualArea.getLeft(), expectedArea.getLeft()) ||
+                    isChanged(actualArea.getTop(), expectedArea.getTop()) ||
+                    isChanged(actualArea.getRight(), expectedArea.getRight()) ||
+                    isChanged(actualArea.getBottom(), expectedArea.getBottom())) {
+                diffElement.addDiff("moved");
+            }
+
+            if (isChanged(actualArea.getWidth(), expectedArea.getWidth()) || isChanged(actualArea.getHeight(), expectedArea.getHeight())) {
+                diffElement.addDiff("resized");
+            }
+        }
+
+        if (isChanged(actual.getText(), expected.getText())) {
+            diffElement.addDiff("text");
+            diffElement.setText(new Result(actual.getText(), expected.getText()));
+        }
+
+        HashMap<String, Result> cssDiff;
+        HashMap<String, Result> attDiff;
+        if (isEncoded(actual, expected)) {
+            EncodedElement actualEncoded = (EncodedElement) actual;
+            EncodedElement expectedEncoded = (EncodedElement) expected;
+
+            cssDiff = compareIds(actualEncoded, actualEncoded.cssFrom, actualEncoded.attributesFrom,
+                    expectedEncoded, expectedEncoded.cssFrom, expectedEncoded.attributesFrom, IGNORE_CSS);
+            attDiff = compareIds(actualEncoded, actualEncoded.attributesFrom, actualEncoded.attributesTo,
+                    expectedEncoded, expectedEncoded.attributesFrom, expectedEncoded.attributesTo, IGNORE_ATTRIBUTES);
+        } else {
+            cssDiff = compareValues(actual.getCss(), expected.getCss(), IGNORE_CSS);
+            attDiff = compareValues(actual.getAttributes(), expected.getAttributes(), IGNORE_ATTRIBUTES);
+        }
+
+        if (cssDiff != null) {
+            diffElement.addDiff("css");
+            diffElement.setCss(cssDiff);
+        }
+
+        if (attDiff != null) {
+            diffElement.addDiff("attributes");
+            diffElement.setAttributes(attDiff);
+        }
+    }
+
+    /*
+     * Returns null if there are no differences, so equal elements don't allocate results.
+     */
+    private static HashMap<String, Result> compareValues(Map<String, String> actual, Map<String, String> expected, Set<String> ignore) {
+        if (actual == null) {
+            actual = Collections.emptyMap();
+        }
+
+        if (expected == null) {
+            expected = Collections.emptyMap();
+        }
+
+        HashMap<String, Result> diff = null;
+
+        for (Map.Entry<String, String> entry : actual.entrySet()) {
+            String name = entry.getKey();
+            if (ignore.contains(name)) {
+                continue;
+            }
+
+            if (expected.containsKey(name)) {
+                String expectedValue = expected.get(name);
+                if (!Objects.equals(entry.getValue(), expectedValue)) {
+                    diff = (diff == null) ? new HashMap<>() : diff;
+                    diff.put(name, new Result(entry.getValue(), expectedValue));
+                }
+            } else {
+                diff = (diff == null) ? new HashMap<>() : diff;
+                diff.put(name, new Result("[value added]", null));
+            }
+        }
+
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            String name = entry.getKey();
+            if (!ignore.contains(name) && !actual.containsKey(name)) {
+                diff = (diff == null) ? new HashMap<>() : diff;
+                diff.put(name, new Result("[value removed]", entry.getValue()));
+            }
+        }
+
+        return diff;
+    }
+
+    private static boolean isEncoded(Element actual, Element expected) {
+        return actual instanceof EncodedElement && expected instanceof EncodedElement
+                && ((EncodedElement) actual).dictionary == ((EncodedElement) expected).dictionary;
+    }
+
+    /*
+     * Merges ranges of properties sorted by name id, names and values are decoded only for differences.
+     * Returns null if there are no differences.
+     */
+    private static HashMap<String, Result> compareIds(EncodedElement actual, int actualFrom, int actualTo,
+                                                      EncodedElement expected, int expectedFrom, int expectedTo,
+                                                      Set<String> ignore) {
+        PropertyDictionary dictionary = actual.dictionary;
+        HashMap<String, Result> diff = null;
+
+        int i = actualFrom;
+        int j = expectedFrom;
+        while (i < actualTo || j < expectedTo) {
+            int actualName = (i < actualTo) ? actual.names[i] : Integer.MAX_VALUE;
+            int expectedName = (j < expectedTo) ? expected.names[j] : Integer.MAX_VALUE;
+
+            if (actualName == expectedName) {
+                if (actual.values[i] != expected.values[j] && !ignore.contains(dictionary.get(actualName))) {
+                    diff = (diff == null) ? new HashMap<>() : diff;
+                    diff.put(dictionary.get(actualName), new Result(dictionary.get(actual.values[i]), dictionary.get(expected.values[j])));
+                }
+
+                i++;
+                j++;
+            } else if (actualName < expectedName) {
+                if (!ignore.contains(dictionary.get(actualName))) {
+                    diff = (diff == null) ? new HashMap<>() : diff;
+                    diff.put(dictionary.get(actualName), new Result("[value added]", null));
+                }
+
+                i++;
+            } else {
+                if (!ignore.contains(dictionary.get(expectedName))) {
+                    diff = (diff == null) ? new HashMap<>() : diff;
+                    diff.put(dictionary.get(expectedName), new Result("[value removed]", dictionary.get(expected.values[j])));
+                }
+
+                j++;
+            }
+        }
+
+        return diff;
+    }
+
+    private static boolean isChanged(Object actual, Object expected) {
+        return actual != null && expected != null && !actual.equals(expected);
+    }
+
     private static HashMap<String, Integer> getWordsFrequency(Element element) {
         List<String> words = new ArrayList<>(asList(element.getText()
                 .replace("\n", " ")
@@ -354,22 +537,4 @@ public class ElementsComparator {
 
         return wordsAndCount;
     }
-
-    private static ObjectMapper createJsonMapper() {
-        return new ObjectMapper()
-                .disable(FAIL_ON_UNKNOWN_PROPERTIES)
-                .disable(FAIL_ON_EMPTY_BEANS)
-                .enable(ACCEPT_EMPTY_ARRAY_AS_NULL_OBJECT)
-                .enable(ACCEPT_SINGLE_VALUE_AS_ARRAY)
-                .setSerializationInclusion(NON_NULL)
-                .configure(WRITE_DATES_AS_TIMESTAMPS, false);
-    }
-
-    private static Map<String, Object> toFlattenMap(Object pojo) {
-        try {
-            return flattenAsMap(createJsonMapper().writeValueAsString(pojo));
-        } catch (JsonProcessingException e) {
-            throw new AssertionError(e.getMessage());
-        }
-    }
 }
\ No newline at end of file
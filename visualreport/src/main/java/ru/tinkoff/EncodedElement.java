@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+import ru.tinkoff.objects.Element;
+
+import java.util.HashMap;
+
+/*
+ * Element of ElementsCache which css and attributes are stored in columns of dictionary ids shared by all elements
+ * of the snapshot. Properties of the element are ranges of the columns sorted by name id:
+ * css in [cssFrom, attributesFrom) and attributes in [attributesFrom, attributesTo).
+ * Maps of css and attributes are decoded on request, ElementsComparator compares ids.
+ */
+class EncodedElement extends Element {
+
+    final PropertyDictionary dictionary;
+    final int[] names;
+    final int[] values;
+    final int cssFrom;
+    final int attributesFrom;
+    final int attributesTo;
+
+    EncodedElement(Element element, PropertyDictionary dictionary, int[] names, int[] values,
+                   int cssFrom, int attributesFrom, int attributesTo) {
+        setDisplay(element.getDisplay());
+        setText(element.getText());
+        setCssBase(element.getCssBase());
+        setArea(element.getArea());
+        setCss(null);
+        setAttributes(null);
+
+        this.dictionary = dictionary;
+        this.names = names;
+        this.values = values;
+        this.cssFrom = cssFrom;
+        this.attributesFrom = attributesFrom;
+        this.attributesTo = attributesTo;
+    }
+
+    @Override
+    public HashMap<String, String> getCss() {
+        return decode(cssFrom, attributesFrom);
+    }
+
+    @Override
+    public HashMap<String, String> getAttributes() {
+        return decode(attributesFrom, attributesTo);
+    }
+
+    private HashMap<String, String> decode(int from, int to) {
+        HashMap<String, String> properties = new HashMap<>((to - from) * 4 / 3 + 1);
+        for (int i = from; i < to; i++) {
+            properties.put(dictionary.get(names[i]), dictionary.get(values[i]));
+        }
+
+        return properties;
+    }
+}
\ No newline at end of file
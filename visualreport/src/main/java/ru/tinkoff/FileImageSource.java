@@ -0,0 +1,263 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Rect;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import static java.awt.image.BufferedImage.TYPE_4BYTE_ABGR;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Collections.singletonList;
+import static org.apache.commons.io.FileUtils.deleteQuietly;
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.opencv.core.Core.mixChannels;
+import static org.opencv.core.CvType.CV_8UC4;
+
+/*
+ * Screenshot file which is decoded on demand, only size is read from the header on creation.
+ * PNG screenshots are decoded once from the top as far as rows are requested, decoded rows are spilled
+ * to a temporary file and regions are read from it, so no row is decoded twice.
+ * Other images are decoded by bands of rows, the last decoded band is kept to read regions of nearby elements.
+ * Regions are decoded into BGRA like OpenCV does for PNG with alpha channel.
+ */
+public class FileImageSource implements ImageSource {
+
+    private static final int BAND_HEIGHT = Integer.parseInt(System.getProperty("compare.band.height", "1024"));
+
+    private final File file;
+    private final int width;
+    private final int height;
+
+    private PngRowDecoder decoder;
+    private Path spillPath;
+    private FileChannel spill;
+    private int spilledRows;
+    private boolean unsupported;
+
+    private Mat band;
+    private int bandTop;
+
+    public FileImageSource(String path) throws IOException {
+        this.file = new File(path);
+
+        try (ImageInputStream input = openStream()) {
+            ImageReader reader = getReader(input);
+            try {
+                this.width = reader.getWidth(0);
+                this.height = reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public synchronized Mat read(Rect region) throws IOException {
+        if (region.x < 0 || region.y < 0 || region.width <= 0 || region.height <= 0
+                || region.x + region.width > width || region.y + region.height > height) {
+            throw new IOException(String.format("Region %s is out of image %dx%d %s", region, width, height, file.getName()));
+        }
+
+        if (!unsupported && (spill != null || openDecoder())) {
+            return readSpilled(region);
+        }
+
+        if (band == null || region.y < bandTop || region.y + region.height > bandTop + band.rows()) {
+            close();
+
+            bandTop = region.y;
+            band = decode(new Rect(0, region.y, width, min(max(region.height, BAND_HEIGHT), height - region.y)));
+        }
+
+        Mat bandRegion = band.submat(new Rect(region.x, region.y - bandTop, region.width, region.height));
+        try {
+            return bandRegion.clone();
+        } finally {
+            bandRegion.release();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (band != null) {
+            band.release();
+            band = null;
+        }
+
+        closeQuietly(decoder);
+        decoder = null;
+
+        closeQuietly(spill);
+        spill = null;
+        spilledRows = 0;
+
+        if (spillPath != null) {
+            deleteQuietly(spillPath.toFile());
+            spillPath = null;
+        }
+    }
+
+    private boolean openDecoder() throws IOException {
+        decoder = PngRowDecoder.open(file);
+        if (decoder == null) {
+            unsupported = true;
+            return false;
+        }
+
+        spillPath = Files.createTempFile("image-rows-", ".bgra");
+        spill = FileChannel.open(spillPath, READ, WRITE);
+
+        return true;
+    }
+
+    private Mat readSpilled(Rect region) throws IOException {
+        int rowBytes = width * 4;
+
+        if (spilledRows < region.y + region.height) {
+            ByteBuffer row = ByteBuffer.allocate(rowBytes);
+            for (; spilledRows < region.y + region.height; spilledRows++) {
+                row.clear();
+                decoder.readRow(row.array());
+
+                long position = (long) spilledRows * rowBytes;
+                while (row.hasRemaining()) {
+                    spill.write(row, position + row.position());
+                }
+            }
+
+            if (spilledRows == height) {
+                closeQuietly(decoder);
+                decoder = null;
+            }
+        }
+
+        int regionRowBytes = region.width * 4;
+        byte[] data = new byte[regionRowBytes * region.height];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        for (int y = 0; y < region.height; y++) {
+            buffer.limit((y + 1) * regionRowBytes);
+
+            long position = ((long) (region.y + y) * width + region.x) * 4;
+            while (buffer.hasRemaining()) {
+                if (spill.read(buffer, position + buffer.position() - y * regionRowBytes) < 0) {
+                    throw new IOException("Rows are not decoded " + file.getName());
+                }
+            }
+        }
+
+        Mat regionMat = new Mat(region.height, region.width, CV_8UC4);
+        regionMat.put(0, 0, data);
+
+        return regionMat;
+    }
+
+    private Mat decode(Rect region) throws IOException {
+        try (ImageInputStream input = openStream()) {
+            ImageReader reader = getReader(input);
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(region.x, region.y, region.width, region.height));
+
+                return toMat(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private ImageInputStream openStream() throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        if (input == null) {
+            throw new IOException("Could not open image " + file.getName());
+        }
+
+        return input;
+    }
+
+    private ImageReader getReader(ImageInputStream input) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format " + file.getName());
+        }
+
+        ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+
+        return reader;
+    }
+
+    private static Mat toMat(BufferedImage image) {
+        BufferedImage abgrImage = image;
+        if (image.getType() != TYPE_4BYTE_ABGR) {
+            abgrImage = new BufferedImage(image.getWidth(), image.getHeight(), TYPE_4BYTE_ABGR);
+
+            Graphics2D graphics = abgrImage.createGraphics();
+            graphics.drawImage(image, 0, 0, null);
+            graphics.dispose();
+        }
+
+        byte[] data = ((DataBufferByte) abgrImage.getRaster().getDataBuffer()).getData();
+
+        Mat abgr = new Mat(abgrImage.getHeight(), abgrImage.getWidth(), CV_8UC4);
+        Mat bgra = new Mat(abgrImage.getHeight(), abgrImage.getWidth(), CV_8UC4);
+        try {
+            abgr.put(0, 0, data);
+
+            // ABGR -> BGRA
+            mixChannels(singletonList(abgr), singletonList(bgra), new MatOfInt(1, 0, 2, 1, 3, 2, 0, 3));
+        } finally {
+            abgr.release();
+        }
+
+        return bgra;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,202 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.bson.Document;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.tinkoff.objects.Triage;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.opencv.imgcodecs.Imgcodecs.IMREAD_GRAYSCALE;
+import static org.opencv.imgcodecs.Imgcodecs.imread;
+import static org.opencv.imgproc.Imgproc.INTER_AREA;
+import static org.opencv.imgproc.Imgproc.resize;
+import static ru.tinkoff.ComparisonScheduler.Stage.DECODE;
+import static ru.tinkoff.ComparisonScheduler.submit;
+import static ru.tinkoff.SnapshotApiService.IMAGES_PATH;
+import static ru.tinkoff.objects.Triage.AMBIGUOUS;
+import static ru.tinkoff.objects.Triage.DIFFERENT;
+import static ru.tinkoff.objects.Triage.RESIZED;
+
+/*
+ * Index of perceptual hashes (dHash) of original screenshots to mark certainly different pairs of screenshots without pixels comparison.
+ * Hashes are computed in background by the DECODE stage after uploads and stored in the images collection,
+ * they are loaded lazily into the bounded in-memory index. Triage only reads stored hashes, screenshots without hash
+ * (uploaded before hashing or still being hashed) are scheduled for hashing and compared by pixels.
+ */
+public class ImageHashIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageHashIndex.class);
+
+    private static final int DIFFERENT_DISTANCE = Integer.parseInt(System.getProperty("triage.different.distance", "10"));
+    private static final int INDEX_SIZE = Integer.parseInt(System.getProperty("triage.index.size", "100000"));
+
+    private final SnapshotStorage snapshotStorage;
+    private final Cache<String, Fingerprint> fingerprints;
+    private final Set<String> indexing = ConcurrentHashMap.newKeySet();
+
+    public ImageHashIndex(SnapshotStorage snapshotStorage) {
+        this.snapshotStorage = snapshotStorage;
+        this.fingerprints = CacheBuilder.newBuilder()
+                .maximumSize(INDEX_SIZE)
+                .build();
+    }
+
+    /*
+     * Computes and stores the hash of the uploaded screenshot in background.
+     */
+    public void indexLater(String fileName) {
+        if (fileName == null || !indexing.add(fileName)) {
+            return;
+        }
+
+        try {
+            submit(DECODE, () -> {
+                try {
+                    index(fileName);
+                } finally {
+                    indexing.remove(fileName);
+                }
+            });
+        } catch (Exception e) {
+            indexing.remove(fileName);
+            logger.error("[image hash] " + fileName, e);
+        }
+    }
+
+    private void index(String fileName) {
+        Fingerprint fingerprint = compute(fileName);
+        if (fingerprint != null) {
+            snapshotStorage.updateImageHash(fileName, fingerprint.hash, fingerprint.width, fingerprint.height);
+        }
+    }
+
+    /*
+     * Returns DIFFERENT or RESIZED for certainly different screenshots, other pairs have to be compared by pixels.
+     */
+    public Triage triage(String actualFileName, String expectedFileName) {
+        Fingerprint actual = get(actualFileName);
+        Fingerprint expected = get(expectedFileName);
+
+        if (actual == null || expected == null) {
+            return AMBIGUOUS;
+        }
+
+        // Different sizes are always counted as changed pixels by ScreensComparator
+        if (actual.width != expected.width || actual.height != expected.height) {
+            return RESIZED;
+        }
+
+        // 64 bits of the whole page don't change with small changes of tall pages, so close hashes are not equal screenshots,
+        // only byte-identical screenshots are equal
+        int distance = Long.bitCount(actual.hash ^ expected.hash);
+        return (distance >= DIFFERENT_DISTANCE) ? DIFFERENT : AMBIGUOUS;
+    }
+
+    private Fingerprint get(String fileName) {
+        Fingerprint fingerprint = fingerprints.getIfPresent(fileName);
+
+        if (fingerprint == null) {
+            Document image = snapshotStorage.findImage(fileName);
+            if (image != null && image.get("dhash") != null) {
+                fingerprint = new Fingerprint(image.getLong("dhash"), image.getInteger("width"), image.getInteger("height"));
+                fingerprints.put(fileName, fingerprint);
+            } else {
+                indexLater(fileName);
+            }
+        }
+
+        return fingerprint;
+    }
+
+    private Fingerprint compute(String fileName) {
+        Mat image = null;
+
+        try {
+            if (new File(IMAGES_PATH + fileName).exists()) {
+                image = imread(IMAGES_PATH + fileName, IMREAD_GRAYSCALE);
+
+                if (!image.empty()) {
+                    Fingerprint fingerprint = new Fingerprint(dHash(image), image.width(), image.height());
+                    fingerprints.put(fileName, fingerprint);
+
+                    return fingerprint;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("[image hash] " + fileName, e);
+        } finally {
+            if (image != null) {
+                image.release();
+            }
+        }
+
+        return null;
+    }
+
+    /*
+     * Difference hash of grayscale image: 64 bits of horizontal gradients of the image reduced to 9x8 pixels.
+     */
+    public static long dHash(Mat grayImage) {
+        Mat reduced = new Mat();
+
+        try {
+            resize(grayImage, reduced, new Size(9, 8), 0, 0, INTER_AREA);
+
+            byte[] pixels = new byte[9 * 8];
+            reduced.get(0, 0, pixels);
+
+            long hash = 0;
+            for (int row = 0; row < 8; row++) {
+                for (int col = 0; col < 8; col++) {
+                    hash <<= 1;
+                    if ((pixels[row * 9 + col] & 0xFF) < (pixels[row * 9 + col + 1] & 0xFF)) {
+                        hash |= 1;
+                    }
+                }
+            }
+
+            return hash;
+        } finally {
+            reduced.release();
+        }
+    }
+
+    private static class Fingerprint {
+
+        private final long hash;
+        private final int width;
+        private final int height;
+
+        private Fingerprint(long hash, int width, int height) {
+            this.hash = hash;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
\ No newline at end of file
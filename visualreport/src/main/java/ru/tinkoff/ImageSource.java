@@ -0,0 +1,42 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.io.IOException;
+
+/*
+ * Screenshot which pixels are read by regions, so comparisons don't depend on how the screenshot is decoded.
+ * Returned region is released by caller.
+ */
+public interface ImageSource extends AutoCloseable {
+
+    int getWidth();
+
+    int getHeight();
+
+    Mat read(Rect region) throws IOException;
+
+    @Override
+    void close();
+}
\ No newline at end of file
@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/*
+ * Screenshot which is already decoded, regions are submatrices of the whole image.
+ */
+public class MatImageSource implements ImageSource {
+
+    private final Mat image;
+
+    public MatImageSource(Mat image) {
+        this.image = image;
+    }
+
+    @Override
+    public int getWidth() {
+        return image.width();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.height();
+    }
+
+    @Override
+    public Mat read(Rect region) {
+        return image.submat(region);
+    }
+
+    /*
+     * The image is owned and released by caller.
+     */
+    @Override
+    public void close() {
+    }
+}
\ No newline at end of file
@@ -0,0 +1,178 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Pool of native OpenCV buffers keyed by size and type.
+ * Only mats acquired from the pool are returned to it, submats and decoded screenshots are released by owners.
+ * Full-page sizes differ almost for each screenshot, so sizes which are not used longest are released
+ * when retained bytes exceed the limit, and the pool keeps sizes of current comparisons.
+ */
+public class MatPool {
+
+    private static final long MAX_RETAINED_BYTES = Long.parseLong(System.getProperty("compare.mat.pool.mb", "512")) * 1024 * 1024;
+
+    // Access order, the first sizes are used longest ago
+    private static final LinkedHashMap<String, Deque<Mat>> pool = new LinkedHashMap<>(16, 0.75f, true);
+    private static long retainedBytes;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evicted = new AtomicLong();
+
+    public static Mat acquire(int rows, int cols, int type) {
+        Mat mat = null;
+
+        synchronized (pool) {
+            String key = makeKey(rows, cols, type);
+            Deque<Mat> mats = pool.get(key);
+            if (mats != null) {
+                mat = mats.pollFirst();
+                if (mats.isEmpty()) {
+                    pool.remove(key);
+                }
+            }
+
+            if (mat != null) {
+                retainedBytes -= bytes(mat);
+            }
+        }
+
+        if (mat != null) {
+            hits.incrementAndGet();
+            return mat;
+        }
+
+        misses.incrementAndGet();
+        return new Mat(rows, cols, type);
+    }
+
+    public static Mat acquire(int rows, int cols, int type, Scalar value) {
+        Mat mat = acquire(rows, cols, type);
+        mat.setTo(value);
+
+        return mat;
+    }
+
+    public static void release(Mat mat) {
+        if (mat == null) {
+            return;
+        }
+
+        long bytes = bytes(mat);
+        if (mat.empty() || mat.isSubmatrix() || bytes > MAX_RETAINED_BYTES) {
+            mat.release();
+            return;
+        }
+
+        List<Mat> evictedMats = new ArrayList<>();
+        synchronized (pool) {
+            pool.computeIfAbsent(makeKey(mat.rows(), mat.cols(), mat.type()), k -> new ArrayDeque<>()).offerFirst(mat);
+            retainedBytes += bytes;
+
+            Iterator<Deque<Mat>> sizes = pool.values().iterator();
+            while (retainedBytes > MAX_RETAINED_BYTES && sizes.hasNext()) {
+                Deque<Mat> mats = sizes.next();
+                while (retainedBytes > MAX_RETAINED_BYTES && !mats.isEmpty()) {
+                    Mat evictedMat = mats.pollLast();
+                    retainedBytes -= bytes(evictedMat);
+                    evictedMats.add(evictedMat);
+                }
+
+                if (mats.isEmpty()) {
+                    sizes.remove();
+                }
+            }
+        }
+
+        // Native memory is freed outside of the pool lock
+        evicted.addAndGet(evictedMats.size());
+        evictedMats.forEach(Mat::release);
+    }
+
+    public static PoolStats getStats() {
+        synchronized (pool) {
+            Map<String, Integer> sizes = new LinkedHashMap<>();
+            pool.forEach((key, mats) -> sizes.put(key, mats.size()));
+
+            return new PoolStats(hits.get(), misses.get(), evicted.get(), retainedBytes, sizes);
+        }
+    }
+
+    private static long bytes(Mat mat) {
+        return mat.total() * mat.elemSize();
+    }
+
+    private static String makeKey(int rows, int cols, int type) {
+        return String.format("%dx%d|%d", rows, cols, type);
+    }
+
+    public static class PoolStats {
+
+        private long hits;
+        private long misses;
+        private long evicted;
+        private long retainedBytes;
+        private Map<String, Integer> retainedSizes;
+
+        public PoolStats(long hits, long misses, long evicted, long retainedBytes, Map<String, Integer> retainedSizes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evicted = evicted;
+            this.retainedBytes = retainedBytes;
+            this.retainedSizes = retainedSizes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvicted() {
+            return evicted;
+        }
+
+        public long getRetainedBytes() {
+            return retainedBytes;
+        }
+
+        /*
+         * Count of retained buffers by size "rows x cols|type", from the least recently used.
+         */
+        public Map<String, Integer> getRetainedSizes() {
+            return retainedSizes;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,261 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Sequential decoder of rows of 8-bit RGB and RGBA non-interlaced PNG, the format of browser screenshots.
+ * PNG rows are compressed by one stream and filtered by previous rows, so they can be decoded only from the top,
+ * the decoder keeps its position and each row is inflated once.
+ * Rows are decoded into BGRA like OpenCV does for PNG with alpha channel.
+ */
+class PngRowDecoder implements Closeable {
+
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454E44;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataInputStream pixels;
+    private final int width;
+    private final int channels;
+
+    private byte[] previousRow;
+    private byte[] currentRow;
+
+    private PngRowDecoder(DataInputStream file, int width, int channels) {
+        this.pixels = new DataInputStream(new InflaterInputStream(new IdatInputStream(file), new Inflater(), BUFFER_SIZE));
+        this.width = width;
+        this.channels = channels;
+        this.previousRow = new byte[width * channels];
+        this.currentRow = new byte[width * channels];
+    }
+
+    /*
+     * Returns null if the file is not a PNG supported by the decoder.
+     */
+    static PngRowDecoder open(File file) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+
+        try {
+            if (input.readLong() != SIGNATURE || input.readInt() != 13 || input.readInt() != IHDR) {
+                input.close();
+                return null;
+            }
+
+            int width = input.readInt();
+            input.readInt();
+            int bitDepth = input.readUnsignedByte();
+            int colorType = input.readUnsignedByte();
+            input.readUnsignedByte();
+            input.readUnsignedByte();
+            int interlace = input.readUnsignedByte();
+            input.readInt();
+
+            // Color type 2 is RGB, 6 is RGBA
+            if (bitDepth != 8 || (colorType != 2 && colorType != 6) || interlace != 0) {
+                input.close();
+                return null;
+            }
+
+            return new PngRowDecoder(input, width, colorType == 6 ? 4 : 3);
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Decodes the next row into BGRA bytes, 4 bytes per pixel.
+     */
+    void readRow(byte[] bgra) throws IOException {
+        int filter = pixels.readUnsignedByte();
+        pixels.readFully(currentRow);
+
+        unfilter(filter);
+
+        for (int pixel = 0, i = 0, j = 0; pixel < width; pixel++, i += channels, j += 4) {
+            bgra[j] = currentRow[i + 2];
+            bgra[j + 1] = currentRow[i + 1];
+            bgra[j + 2] = currentRow[i];
+            bgra[j + 3] = (channels == 4) ? currentRow[i + 3] : (byte) 255;
+        }
+
+        byte[] row = previousRow;
+        previousRow = currentRow;
+        currentRow = row;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pixels.close();
+    }
+
+    private void unfilter(int filter) throws IOException {
+        byte[] row = currentRow;
+        byte[] previous = previousRow;
+        int bpp = channels;
+
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = bpp; i < row.length; i++) {
+                    row[i] += row[i - bpp];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < row.length; i++) {
+                    row[i] += previous[i];
+                }
+                break;
+            case 3:
+                for (int i = 0; i < row.length; i++) {
+                    int left = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+                    row[i] += (left + (previous[i] & 0xff)) >>> 1;
+                }
+                break;
+            case 4:
+                for (int i = 0; i < row.length; i++) {
+                    int left = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+                    int upLeft = (i >= bpp) ? previous[i - bpp] & 0xff : 0;
+                    row[i] += paeth(left, previous[i] & 0xff, upLeft);
+                }
+                break;
+            default:
+                throw new IOException("Unknown PNG filter " + filter);
+        }
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int toLeft = Math.abs(estimate - left);
+        int toUp = Math.abs(estimate - up);
+        int toUpLeft = Math.abs(estimate - upLeft);
+
+        if (toLeft <= toUp && toLeft <= toUpLeft) {
+            return left;
+        } else if (toUp <= toUpLeft) {
+            return up;
+        } else {
+            return upLeft;
+        }
+    }
+
+    /*
+     * Compressed data of all IDAT chunks, other chunks are skipped.
+     */
+    private static class IdatInputStream extends InputStream {
+
+        private final DataInputStream file;
+        private int remaining;
+        private boolean inChunk;
+        private boolean ended;
+
+        IdatInputStream(DataInputStream file) {
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (remaining == 0) {
+                if (!nextIdat()) {
+                    return -1;
+                }
+            }
+
+            int read = file.read(b, off, Math.min(len, remaining));
+            if (read < 0) {
+                throw new EOFException("Truncated PNG data");
+            }
+
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+        private boolean nextIdat() throws IOException {
+            if (ended) {
+                return false;
+            }
+
+            if (inChunk) {
+                // CRC of the previous chunk
+                file.readInt();
+                inChunk = false;
+            }
+
+            while (true) {
+                int length = file.readInt();
+                int type = file.readInt();
+
+                if (type == IDAT) {
+                    remaining = length;
+                    inChunk = true;
+                    return true;
+                } else if (type == IEND) {
+                    ended = true;
+                    return false;
+                } else {
+                    skipFully(length + 4);
+                }
+            }
+        }
+
+        private void skipFully(int count) throws IOException {
+            byte[] skipped = new byte[Math.min(count, BUFFER_SIZE)];
+            for (int left = count; left > 0; ) {
+                int read = file.read(skipped, 0, Math.min(left, skipped.length));
+                if (read < 0) {
+                    throw new EOFException("Truncated PNG chunk");
+                }
+                left -= read;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Dictionary of names and values of css and attributes of cached elements, an id is the index of the string.
+ * Id 0 is null value. Ids are added until the dictionary is full, then -1 is returned.
+ */
+class PropertyDictionary {
+
+    private final int maxSize;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+    // Strings are read without lock: an id is published after its string is written
+    private volatile String[] strings = new String[1024];
+    private int size = 1;
+
+    PropertyDictionary(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    int id(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (this) {
+            id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+
+            if (size >= maxSize) {
+                return -1;
+            }
+
+            String[] current = strings;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+
+            current[size] = value;
+            strings = current;
+            ids.put(value, size);
+
+            return size++;
+        }
+    }
+
+    String get(int id) {
+        return strings[id];
+    }
+}
\ No newline at end of file
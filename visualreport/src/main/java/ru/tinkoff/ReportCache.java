@@ -0,0 +1,136 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static com.google.common.hash.Hashing.sha256;
+import static org.apache.commons.io.FileUtils.readFileToString;
+import static ru.tinkoff.ElementsComparator.getRoiMargin;
+import static ru.tinkoff.ReportsEviction.isExpired;
+import static ru.tinkoff.ReportsEviction.touch;
+import static ru.tinkoff.ScreensComparator.getComparisonSettings;
+import static ru.tinkoff.SnapshotApiService.REPORTS_PATH;
+
+/*
+ * Saved reports keyed by all parameters of comparison.
+ * Recently used reports are kept in memory over report files in the reports directory, report files are removed by ReportsEviction.
+ */
+public class ReportCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportCache.class);
+
+    private static final int CACHE_SIZE = Integer.parseInt(System.getProperty("report.cache.size", "20"));
+
+    private final Cache<String, String> reports;
+
+    public ReportCache() {
+        this.reports = CacheBuilder.newBuilder()
+                .maximumSize(CACHE_SIZE)
+                .build();
+
+        ReportsEviction.start();
+    }
+
+    public static String makeKey(String actualDate, String expectedDate, int inaccuracy, boolean roi) {
+        StringBuilder key = new StringBuilder();
+        key.append(actualDate.replaceAll(":", "-").replaceAll("\\.", "-"))
+                .append("_")
+                .append(expectedDate.replaceAll(":", "-").replaceAll("\\.", "-"))
+                .append("_rgb")
+                .append(inaccuracy);
+
+        if (roi) {
+            key.append("_roi").append(getRoiMargin());
+        }
+
+        // Reports of other pixels comparison settings are saved separately
+        key.append("_").append(sha256().hashString(getComparisonSettings(), UTF_8).toString(), 0, 8);
+
+        return key.toString();
+    }
+
+    public String get(String key) {
+        File file = new File(REPORTS_PATH + key + ".json");
+
+        String json = reports.getIfPresent(key);
+        if (json != null && file.exists()) {
+            touch(file);
+            return json;
+        }
+
+        reports.invalidate(key);
+
+        try {
+            if (file.exists()) {
+                if (isExpired(file)) {
+                    Files.deleteIfExists(file.toPath());
+                    return null;
+                }
+
+                json = readFileToString(file, "UTF-8");
+                touch(file);
+                reports.put(key, json);
+
+                return json;
+            }
+        } catch (Exception e) {
+            logger.error("[report cache] " + key, e);
+        }
+
+        return null;
+    }
+
+    public void put(String key, String json) {
+        if (json == null) {
+            return;
+        }
+
+        try {
+            File temp = new File(REPORTS_PATH + key + ".tmp");
+            Files.write(temp.toPath(), json.getBytes(UTF_8));
+            Files.move(temp.toPath(), Paths.get(REPORTS_PATH, key + ".json"), ATOMIC_MOVE);
+            ReportsEviction.register(new File(REPORTS_PATH + key + ".json"), json);
+
+            reports.put(key, json);
+        } catch (Exception e) {
+            logger.error("[save report]", e);
+        }
+    }
+
+    public void invalidate(String key) {
+        reports.invalidate(key);
+
+        try {
+            Files.deleteIfExists(Paths.get(REPORTS_PATH, key + ".json"));
+        } catch (Exception e) {
+            logger.error("[report cache] " + key, e);
+        }
+    }
+}
\ No newline at end of file
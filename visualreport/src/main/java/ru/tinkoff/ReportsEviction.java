@@ -0,0 +1,194 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.apache.commons.io.FileUtils.readFileToString;
+import static ru.tinkoff.ComparisonCache.COMPARISONS_PATH;
+import static ru.tinkoff.SnapshotApiService.REPORTS_PATH;
+
+/*
+ * Eviction of the reports directory: saved reports, cached comparisons and diff images.
+ * Last modified time of a report or a comparison is the time of its last use. They are removed after TTL since last use
+ * and the least recently used ones are removed when they and their diff images are over the disk quota.
+ * Diff images are removed when no report or comparison refers to them, new images are kept for the orphan timeout
+ * because reports and comparisons are saved after their images.
+ * Eviction runs on a single background thread, so saving and reading reports never waits for the directory listing.
+ */
+public class ReportsEviction {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportsEviction.class);
+
+    private static final long TTL_HOURS = Long.parseLong(System.getProperty("report.cache.ttl.hours", "720"));
+    private static final long QUOTA_MB = Long.parseLong(System.getProperty("report.cache.quota.mb", "1024"));
+    private static final long ORPHAN_HOURS = Long.parseLong(System.getProperty("report.cache.orphan.hours", "24"));
+
+    private static final long EVICTION_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Pattern IMAGE_URL = Pattern.compile("/images/reports/([^\"/\\\\]+)");
+
+    // Diff images referred by reports and comparisons, keyed by their paths
+    private static final Map<String, Set<String>> references = new ConcurrentHashMap<>();
+
+    private static final AtomicBoolean started = new AtomicBoolean();
+
+    /*
+     * Starts the eviction thread, the first eviction runs immediately.
+     */
+    public static void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("reports-eviction-%d")
+                        .setDaemon(true)
+                        .build());
+        scheduler.scheduleWithFixedDelay(ReportsEviction::evictSafely, 0, EVICTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Remembers diff images of the saved report or comparison, so its file is not read by eviction.
+     */
+    public static void register(File file, String json) {
+        references.put(file.getPath(), findImages(json));
+    }
+
+    private static void evictSafely() {
+        // An exception would cancel next evictions
+        try {
+            evict();
+        } catch (Exception e) {
+            logger.error("[reports eviction]", e);
+        }
+    }
+
+    private static void evict() {
+        List<File> files = new ArrayList<>();
+        files.addAll(list(REPORTS_PATH, name -> name.endsWith(".json")));
+        files.addAll(list(COMPARISONS_PATH, name -> name.endsWith(".json")));
+
+        Map<String, File> images = new HashMap<>();
+        for (File image : list(REPORTS_PATH, name -> !name.endsWith(".json") && !name.endsWith(".tmp"))) {
+            if (image.isFile()) {
+                images.put(image.getName(), image);
+            }
+        }
+
+        files.sort(Comparator.comparingLong(File::lastModified).reversed());
+
+        long quota = QUOTA_MB * 1024 * 1024;
+        long size = 0;
+        Set<String> referenced = new HashSet<>();
+        for (File file : files) {
+            Set<String> fileImages = getImages(file);
+
+            // Images shared by several reports are counted once with the most recently used of them
+            long fileSize = file.length();
+            for (String image : fileImages) {
+                if (!referenced.contains(image) && images.containsKey(image)) {
+                    fileSize += images.get(image).length();
+                }
+            }
+
+            if (isExpired(file) || (QUOTA_MB > 0 && size + fileSize > quota)) {
+                references.remove(file.getPath());
+                if (!file.delete()) {
+                    logger.warn("[reports eviction] could not remove " + file.getName());
+                }
+            } else {
+                size += fileSize;
+                referenced.addAll(fileImages);
+            }
+        }
+
+        for (File image : images.values()) {
+            if (!referenced.contains(image.getName()) && isOrphan(image)) {
+                if (!image.delete()) {
+                    logger.warn("[reports eviction] could not remove " + image.getName());
+                }
+            }
+        }
+
+        references.keySet().removeIf(path -> !new File(path).exists());
+    }
+
+    public static boolean isExpired(File file) {
+        return TTL_HOURS > 0 && System.currentTimeMillis() - file.lastModified() > TimeUnit.HOURS.toMillis(TTL_HOURS);
+    }
+
+    public static void touch(File file) {
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            logger.warn("[reports eviction] could not touch " + file.getName());
+        }
+    }
+
+    private static boolean isOrphan(File image) {
+        return System.currentTimeMillis() - image.lastModified() > TimeUnit.HOURS.toMillis(ORPHAN_HOURS);
+    }
+
+    private static Set<String> getImages(File file) {
+        Set<String> images = references.get(file.getPath());
+
+        if (images == null) {
+            try {
+                images = findImages(readFileToString(file, "UTF-8"));
+                references.put(file.getPath(), images);
+            } catch (IOException e) {
+                logger.error("[reports eviction] " + file.getName(), e);
+                images = new HashSet<>();
+            }
+        }
+
+        return images;
+    }
+
+    private static Set<String> findImages(String json) {
+        Set<String> images = new HashSet<>();
+
+        Matcher matcher = IMAGE_URL.matcher(json);
+        while (matcher.find()) {
+            images.add(matcher.group(1));
+        }
+
+        return images;
+    }
+
+    private static List<File> list(String path, Predicate<String> filter) {
+        File[] files = new File(path).listFiles((dir, name) -> filter.test(name));
+        return (files != null) ? Arrays.asList(files) : new ArrayList<>();
+    }
+}
\ No newline at end of file
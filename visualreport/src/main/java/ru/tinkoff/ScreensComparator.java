@@ -21,6 +21,7 @@ package ru.tinkoff;
 
 import javafx.util.Pair;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.slf4j.Logger;
@@ -28,21 +29,61 @@ import org.slf4j.LoggerFactory;
 import ru.tinkoff.objects.Element;
 
 import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 import static org.apache.commons.lang.RandomStringUtils.randomAlphanumeric;
 import static org.opencv.core.Core.*;
+import static org.opencv.core.CvType.CV_8UC1;
 import static org.opencv.core.CvType.CV_8UC4;
+import static org.opencv.imgcodecs.Imgcodecs.IMWRITE_PNG_COMPRESSION;
+import static org.opencv.imgcodecs.Imgcodecs.IMWRITE_WEBP_QUALITY;
 import static org.opencv.imgcodecs.Imgcodecs.imwrite;
 import static org.opencv.imgproc.Imgproc.THRESH_BINARY;
 import static org.opencv.imgproc.Imgproc.threshold;
+import static ru.tinkoff.ComparisonScheduler.Stage.ENCODE;
+import static ru.tinkoff.ComparisonScheduler.Stage.PIXELS;
+import static ru.tinkoff.ComparisonScheduler.submit;
+import static ru.tinkoff.MatPool.acquire;
+import static ru.tinkoff.MatPool.release;
 import static ru.tinkoff.SnapshotApiService.REPORTS_PATH;
 
 public class ScreensComparator {
 
     private static Logger logger = LoggerFactory.getLogger(ScreensComparator.class);
 
+    /*
+     * Tile side in pixels for full-page comparison, 0 to compare the whole image at once.
+     * Diff budget in percents, 0 to compare all tiles even if the page is already failed.
+     */
+    private static final int TILE_SIZE = Integer.parseInt(System.getProperty("compare.tile.size", "0"));
+    private static final float DIFF_BUDGET = Float.parseFloat(System.getProperty("compare.diff.budget", "0"));
+
+    /*
+     * Diff images format (png or webp) and PNG compression level from 0 to 9.
+     */
+    private static final String IMAGE_FORMAT = System.getProperty("compare.image.format", "png");
+    private static final int PNG_COMPRESSION = Integer.parseInt(System.getProperty("compare.png.compression", "1"));
+    private static final int SAVE_TIMEOUT = 60;
+
+    /*
+     * Diff images waiting for the encoder stage hold full-size native buffers, so the encoder queue is bounded
+     * by their memory in KB. Images over the limit are encoded by the comparing thread.
+     */
+    private static final int ENCODE_QUEUE_MB = Integer.parseInt(System.getProperty("compare.encode.queue.mb", "512"));
+    private static final Semaphore encodeQueueKb = new Semaphore(ENCODE_QUEUE_MB * 1024);
+
+    private static final Map<String, Future<Void>> savingImages = new ConcurrentHashMap<>();
+
     public static Pair<Float, String> compareScreens(Mat actualImage, Mat expectedImage,
                                                      Element.Area actualArea, Element.Area expectedArea,
                                                      boolean background,
@@ -117,16 +158,6 @@ public class ScreensComparator {
             actualImageMin = actualImage.submat(new Rect(xActualOffset, yActualOffset, minWidth, minHeight));
             expectedImageMin = expectedImage.submat(new Rect(xExpectedOffset, yExpectedOffset, minWidth, minHeight));
 
-            redMask = new Mat(minHeight, minWidth, CV_8UC4);
-
-            absdiff(actualImageMin, expectedImageMin, redMask);
-
-            threshold(redMask, redMask, inaccuracy, 255, THRESH_BINARY);
-
-            inRange(redMask, new Scalar(255, 255, 255, 0), new Scalar(255, 255, 255, 0), redMask);
-
-            diffPixels = countNonZero(redMask);
-
             if (outerWidth > 0) {
                 diffPixels += outerWidth * minHeight;
             }
@@ -135,19 +166,42 @@ public class ScreensComparator {
                 diffPixels += minWidth * outerHeight;
             }
 
+            if (TILE_SIZE > 0 && actualArea == null && expectedArea == null) {
+                redMask = acquire(minHeight, minWidth, CV_8UC1, new Scalar(0));
+
+                diffPixels = compareTiles(actualImageMin, expectedImageMin, redMask, diffPixels, maxWidth * maxHeight, inaccuracy);
+            } else {
+                diffTemp = acquire(minHeight, minWidth, CV_8UC4);
+                redMask = acquire(minHeight, minWidth, CV_8UC1);
+
+                absdiff(actualImageMin, expectedImageMin, diffTemp);
+
+                threshold(diffTemp, diffTemp, inaccuracy, 255, THRESH_BINARY);
+
+                inRange(diffTemp, new Scalar(255, 255, 255, 0), new Scalar(255, 255, 255, 0), redMask);
+
+                diffPixels += countNonZero(redMask);
+
+                release(diffTemp);
+                diffTemp = null;
+            }
+
             if (diffPixels > 0) {
-                diffResult = new Mat(maxHeight, maxWidth, CV_8UC4, new Scalar(0, 0, 255, 255));
+                diffResult = acquire(maxHeight, maxWidth, CV_8UC4, new Scalar(0, 0, 255, 255));
 
+                // Screenshot is copied, it's shared by other elements comparisons
                 if (background) {
-                    diffTemp = actualImageMin;
+                    diffTemp = acquire(minHeight, minWidth, CV_8UC4);
+                    actualImageMin.copyTo(diffTemp);
                 } else {
-                    diffTemp = new Mat(minHeight, minWidth, CV_8UC4, new Scalar(255, 255, 255, 0));
+                    diffTemp = acquire(minHeight, minWidth, CV_8UC4, new Scalar(255, 255, 255, 0));
                 }
 
                 diffTemp.setTo(new Scalar(0, 0, 255, 255), redMask);
                 diffTemp.copyTo(new Mat(diffResult, new Rect(0, 0, minWidth, minHeight)));
 
                 imagePath = saveImage(diffResult, error);
+                diffResult = null;
 
                 diffPercentage = (diffPixels * 100.0f) / (maxWidth * maxHeight);
             }
@@ -155,13 +209,9 @@ public class ScreensComparator {
             error.append(System.currentTimeMillis() + "Could not compare screens: " + e.getMessage()).append("\n");
             logger.error("[compare screens]", e);
         } finally {
-            if (diffResult != null) {
-                diffResult.release();
-            }
-
-            if (redMask != null) {
-                redMask.release();
-            }
+            release(diffResult);
+            release(redMask);
+            release(diffTemp);
 
             if (actualImageMin != null) {
                 actualImageMin.release();
@@ -170,28 +220,169 @@ public class ScreensComparator {
             if (expectedImageMin != null) {
                 expectedImageMin.release();
             }
+        }
+
+        return new Pair(diffPercentage, imagePath);
+    }
 
-            if (diffTemp != null) {
-                diffTemp.release();
+    /*
+     * Compares images by tiles in parallel and writes changed pixels of each tile into diffMask.
+     * Tiles which are not started yet are skipped when diffPixels exceed the diff budget,
+     * so the result is the lower bound of changed pixels and the mask contains only compared tiles.
+     */
+    private static int compareTiles(Mat actualImage, Mat expectedImage, Mat diffMask,
+                                    int diffPixels, int totalPixels, int inaccuracy) throws Exception {
+        long budgetPixels = (DIFF_BUDGET > 0) ? (long) (totalPixels * DIFF_BUDGET / 100.0f) : Long.MAX_VALUE;
+        AtomicInteger counter = new AtomicInteger(diffPixels);
+
+        List<Future<?>> futureList = new LinkedList<>();
+        for (int y = 0; y < diffMask.rows(); y += TILE_SIZE) {
+            for (int x = 0; x < diffMask.cols(); x += TILE_SIZE) {
+                Rect tile = new Rect(x, y, min(TILE_SIZE, diffMask.cols() - x), min(TILE_SIZE, diffMask.rows() - y));
+
+                futureList.add(submit(PIXELS, () -> {
+                    if (counter.get() > budgetPixels) {
+                        return;
+                    }
+
+                    Mat actualTile = actualImage.submat(tile);
+                    Mat expectedTile = expectedImage.submat(tile);
+                    Mat maskTile = diffMask.submat(tile);
+                    Mat diffTile = acquire(tile.height, tile.width, CV_8UC4);
+
+                    try {
+                        absdiff(actualTile, expectedTile, diffTile);
+
+                        threshold(diffTile, diffTile, inaccuracy, 255, THRESH_BINARY);
+
+                        inRange(diffTile, new Scalar(255, 255, 255, 0), new Scalar(255, 255, 255, 0), maskTile);
+
+                        counter.addAndGet(countNonZero(maskTile));
+                    } finally {
+                        actualTile.release();
+                        expectedTile.release();
+                        maskTile.release();
+                        release(diffTile);
+                    }
+                }));
             }
         }
 
-        return new Pair(diffPercentage, imagePath);
+        // All tiles are waited before the error is thrown, the mask is returned to the pool only when no tile writes it
+        Exception tileError = null;
+        for (Future<?> f : futureList) {
+            try {
+                f.get();
+            } catch (Exception e) {
+                if (tileError == null) {
+                    tileError = e;
+                }
+            }
+        }
+
+        if (tileError != null) {
+            throw tileError;
+        }
+
+        if (counter.get() > budgetPixels) {
+            logger.info("[compare tiles] diff budget " + DIFF_BUDGET + "% is exceeded, remaining tiles are skipped");
+        }
+
+        return counter.get();
     }
 
+    /*
+     * Passes image to the encoder stage and returns file name before the image is written to disk.
+     * The image is owned by encoder and is released after saving.
+     */
     public static String saveImage(Mat image, StringBuffer error) {
         if (!image.empty()) {
             try {
-                String fileName = String.format("%s-%s.png", new Date().toInstant().getEpochSecond(), randomAlphanumeric(10));
-                imwrite(REPORTS_PATH + fileName, image);
+                String fileName = String.format("%s-%s.%s", new Date().toInstant().getEpochSecond(), randomAlphanumeric(10), IMAGE_FORMAT);
+
+                int sizeKb = (int) min(image.total() * image.elemSize() / 1024 + 1, ENCODE_QUEUE_MB * 1024L);
+                if (ENCODE_QUEUE_MB <= 0 || !encodeQueueKb.tryAcquire(sizeKb)) {
+                    writeImage(fileName, image);
+                    return fileName;
+                }
+
+                CompletableFuture<Void> saved = new CompletableFuture<>();
+                savingImages.put(fileName, saved);
+
+                try {
+                    submit(ENCODE, () -> {
+                        try {
+                            writeImage(fileName, image);
+                        } finally {
+                            encodeQueueKb.release(sizeKb);
+                            savingImages.remove(fileName);
+                            saved.complete(null);
+                        }
+                    });
+                } catch (Exception e) {
+                    encodeQueueKb.release(sizeKb);
+                    savingImages.remove(fileName);
+                    saved.complete(null);
+                    throw e;
+                }
 
                 return fileName;
             } catch (Exception e) {
                 error.append(System.currentTimeMillis() + "Could not save image: " + e.getMessage()).append("\n");
                 logger.error("[save image]", e);
             }
+        } else {
+            release(image);
         }
 
         return "";
     }
+
+    /*
+     * Returns true if the image is passed to the encoder stage and is not written to disk yet.
+     */
+    public static boolean isSaving(String fileName) {
+        return savingImages.containsKey(fileName);
+    }
+
+    /*
+     * Settings which change a result of pixels comparison besides of images and inaccuracy.
+     */
+    public static String getComparisonSettings() {
+        return TILE_SIZE + "|" + DIFF_BUDGET;
+    }
+
+    /*
+     * Waits until the image is written to disk if it's still saving.
+     */
+    public static void awaitImage(String fileName) throws Exception {
+        Future<Void> saved = savingImages.get(fileName);
+        if (saved != null) {
+            saved.get(SAVE_TIMEOUT, TimeUnit.SECONDS);
+        }
+    }
+
+    /*
+     * Writes the image and releases it.
+     */
+    private static void writeImage(String fileName, Mat image) {
+        MatOfInt params = getWriteParams();
+        try {
+            imwrite(REPORTS_PATH + fileName, image, params);
+        } catch (Exception e) {
+            logger.error("[save image] " + fileName, e);
+        } finally {
+            params.release();
+            release(image);
+        }
+    }
+
+    private static MatOfInt getWriteParams() {
+        if (IMAGE_FORMAT.equals("webp")) {
+            // Quality above 100 is lossless WebP
+            return new MatOfInt(IMWRITE_WEBP_QUALITY, 101);
+        } else {
+            return new MatOfInt(IMWRITE_PNG_COMPRESSION, PNG_COMPRESSION);
+        }
+    }
 }
\ No newline at end of file
@@ -20,40 +20,72 @@ package ru.tinkoff;
  */
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.hash.HashCode;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.util.JSON;
 import io.vavr.control.Try;
 import javafx.util.Pair;
+import org.apache.commons.io.IOUtils;
 import org.bson.Document;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.tinkoff.objects.*;
 import ru.tinkoff.objects.DiffSnapshot.Browser;
+import spark.Request;
 
 import javax.servlet.MultipartConfigElement;
 import javax.servlet.http.Part;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static org.apache.commons.io.FileUtils.*;
-import static org.apache.commons.io.IOUtils.toByteArray;
 import static org.apache.commons.lang.StringUtils.*;
 import static org.opencv.imgcodecs.Imgcodecs.CV_LOAD_IMAGE_UNCHANGED;
 import static org.opencv.imgcodecs.Imgcodecs.imread;
+import static ru.tinkoff.ComparisonScheduler.Stage.DECODE;
+import static ru.tinkoff.ComparisonScheduler.submit;
 import static ru.tinkoff.ElementsComparator.assertImage;
 import static ru.tinkoff.ElementsComparator.compare;
+import static ru.tinkoff.ElementsComparator.compareNotFound;
+import static ru.tinkoff.ElementsComparator.toRect;
 import static ru.tinkoff.HttpUtils.*;
 import static ru.tinkoff.ParserUtils.parseJson;
 import static ru.tinkoff.ParserUtils.writeAsString;
+import static ru.tinkoff.ScreensComparator.awaitImage;
+import static ru.tinkoff.objects.Triage.AMBIGUOUS;
+import static ru.tinkoff.objects.Triage.EQUAL;
+import static ru.tinkoff.objects.Triage.RESIZED;
 import static spark.Spark.get;
 import static spark.Spark.post;
 
@@ -62,12 +94,32 @@ public class SnapshotApiService {
     public static final String IMAGES_PATH = System.getProperty("screenshooter.dir") + "/origin/images/";
     public static final String REPORTS_PATH = System.getProperty("screenshooter.dir") + "/reports/";
 
-    private static final ForkJoinPool imagesThreadsPool = new ForkJoinPool(100);
+    private static final MultipartConfigElement MULTIPART_CONFIG = new MultipartConfigElement(System.getProperty("java.io.tmpdir"));
+    private static final long UPLOAD_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final int RUNS_PAGE_SIZE = Integer.parseInt(System.getProperty("runs.page.size", "100"));
+    private static final int RUNS_PAGE_MAX_SIZE = 1000;
+
+    private static final int STREAM_QUEUE_SIZE = Integer.parseInt(System.getProperty("report.stream.queue.size", "100"));
+
+    /*
+     * Screenshots taller than this are released after full-page comparison and elements regions are decoded by bands.
+     */
+    private static final int REGION_DECODE_HEIGHT = Integer.parseInt(System.getProperty("compare.region.decode.height", "16384"));
+
     private final SnapshotStorage snapshotStorage;
+    private final ImageHashIndex imageHashIndex;
+    private final ComparisonCache comparisonCache;
+    private final ReportCache reportCache;
+    private final ElementsCache elementsCache;
     private static final Logger logger = LoggerFactory.getLogger(SnapshotApiService.class);
 
     public SnapshotApiService(SnapshotStorage snapshotStorage) {
         this.snapshotStorage = snapshotStorage;
+        this.imageHashIndex = new ImageHashIndex(snapshotStorage);
+        this.comparisonCache = new ComparisonCache();
+        this.reportCache = new ReportCache();
+        this.elementsCache = new ElementsCache(snapshotStorage);
         setupEndpoints();
 
         try {
@@ -84,10 +136,20 @@ public class SnapshotApiService {
             try {
                 response.header("Access-Control-Allow-Origin", "*");
                 response.header("Access-Control-Allow-Methods", "GET");
+                response.header("Access-Control-Expose-Headers", "X-Next-After");
                 response.header("Content-Type", "application/json");
 
-                List<Document> documents = snapshotStorage.find();
-                return JSON.serialize(documents);
+                int limit = Integer.parseInt(Optional.ofNullable(request.queryParams("limit")).orElse(String.valueOf(RUNS_PAGE_SIZE)));
+                limit = max(1, min(limit, RUNS_PAGE_MAX_SIZE));
+
+                List<Document> runs = snapshotStorage.findRuns(request.queryParams("after"), limit);
+
+                // Cursor of the next page is datetime of the last run
+                if (runs.size() == limit) {
+                    response.header("X-Next-After", ((Date) runs.get(runs.size() - 1).get("_id")).toInstant().toString());
+                }
+
+                return JSON.serialize(runs);
             } catch (Exception e) {
                 logger.error("[GET /snapshots]", e);
             }
@@ -104,6 +166,8 @@ public class SnapshotApiService {
          * reload - to create report or get from existing file (equals false by default).
          * rgb - pixel-by-pixels comparison inaccuracy (equals 0 by default).
          * testrunid - to update tests results in TestRail by test run ID (equals empty by default).
+         * triage - to skip pixels comparison of screenshots with distant perceptual hashes (equals false by default).
+         * roi - to compare pixels only of the union of elements areas (equals false by default).
          */
         get("/snapshots/report", ((request, response) -> {
             response.header("Access-Control-Allow-Origin", "*");
@@ -113,7 +177,6 @@ public class SnapshotApiService {
             String testRunId = request.queryParams("testrunid");
             String actualDate = request.queryParams("actual");
             String expectedDate = request.queryParams("expected");
-            String datesHash = makeDatesHash(actualDate, expectedDate);
 
             int inaccuracy = 0;
             String inaccuracyParameter = request.queryParams("rgb");
@@ -121,6 +184,11 @@ public class SnapshotApiService {
                 inaccuracy = Integer.parseInt(inaccuracyParameter);
             }
 
+            boolean triage = Boolean.parseBoolean(request.queryParams("triage"));
+            boolean roi = Boolean.parseBoolean(request.queryParams("roi"));
+
+            String reportKey = ReportCache.makeKey(actualDate, expectedDate, inaccuracy, roi);
+
             long start = System.currentTimeMillis();
             logger.info("[start report] " + actualDate + "-" + expectedDate);
             String reportJson = "{}";
@@ -129,20 +197,21 @@ public class SnapshotApiService {
                 String cacheJson = null;
 
                 boolean reload = Boolean.parseBoolean(request.queryParams("reload"));
-                if (!reload) {
-                    File jsonFile = new File(REPORTS_PATH + datesHash + ".json");
-                    cacheJson = jsonFile.exists() ? readFileToString(jsonFile, "UTF-8") : null;
+                if (reload) {
+                    reportCache.invalidate(reportKey);
+                } else if (!triage) {
+                    cacheJson = reportCache.get(reportKey);
                 }
 
                 if (cacheJson != null) {
                     reportJson = cacheJson;
                 } else {
-                    reportJson = createDiffReport(actualDate, expectedDate, inaccuracy);
+                    reportJson = createDiffReport(actualDate, expectedDate, inaccuracy, triage, roi, reload);
                 }
 
                 logger.info("[finished report] " + actualDate + "-" + expectedDate + ", time ms: " + (System.currentTimeMillis() - start));
 
-                if (testRunId != null && testRunId.length() > 0) {
+                if (testRunId != null && testRunId.length() > 0 && !triage) {
                     setTestRunResults(testRunId, parseJson(reportJson, new TypeReference<DiffReport>() {
                     }).get(), String.format("%s/web/actual/%s/expected/%s", FRONTEND_DOMAIN, actualDate, expectedDate));
                 }
@@ -153,6 +222,75 @@ public class SnapshotApiService {
             return reportJson;
         }));
 
+        /*
+         * Streams compared snapshots as newline-delimited JSON as soon as each comparison is finished.
+         * Each line contains story, state and snapshot, so stories and states are grouped by client.
+         *
+         * Query parameters are the same as for /snapshots/report except testrunid.
+         * Streamed report is not saved, previously saved report is streamed if reload is false.
+         */
+        get("/snapshots/report/stream", ((request, response) -> {
+            response.header("Access-Control-Allow-Origin", "*");
+            response.header("Access-Control-Allow-Methods", "GET");
+            response.header("Content-Type", "application/x-ndjson");
+
+            String actualDate = request.queryParams("actual");
+            String expectedDate = request.queryParams("expected");
+
+            int inaccuracy = 0;
+            String inaccuracyParameter = request.queryParams("rgb");
+            if (inaccuracyParameter != null && inaccuracyParameter.length() > 0 && isNumeric(inaccuracyParameter)) {
+                inaccuracy = Integer.parseInt(inaccuracyParameter);
+            }
+
+            boolean triage = Boolean.parseBoolean(request.queryParams("triage"));
+            boolean roi = Boolean.parseBoolean(request.queryParams("roi"));
+
+            String reportKey = ReportCache.makeKey(actualDate, expectedDate, inaccuracy, roi);
+            boolean reload = Boolean.parseBoolean(request.queryParams("reload"));
+
+            long start = System.currentTimeMillis();
+            logger.info("[start report stream] " + actualDate + "-" + expectedDate);
+
+            try {
+                Writer writer = new OutputStreamWriter(response.raw().getOutputStream(), UTF_8);
+
+                String cacheJson = (!reload && !triage) ? reportCache.get(reportKey) : null;
+                if (cacheJson != null) {
+                    DiffReport diffReport = parseJson(cacheJson, new TypeReference<DiffReport>() {
+                    }).get();
+
+                    for (DiffStory story : diffReport.getStories()) {
+                        for (DiffState state : story.getStates()) {
+                            for (DiffSnapshot snapshot : state.getSnapshots()) {
+                                writeStream(writer, new DiffStreamSnapshot(story.getStory(), state.getState(), snapshot));
+                            }
+                        }
+                    }
+                } else {
+                    streamSnapshots(actualDate, expectedDate, inaccuracy, triage, roi, reload, writer);
+                }
+
+                logger.info("[finished report stream] " + actualDate + "-" + expectedDate + ", time ms: " + (System.currentTimeMillis() - start));
+            } catch (Exception e) {
+                logger.error("[error report stream]" + actualDate + "-" + expectedDate, e);
+            }
+
+            return "";
+        }));
+
+        get("/stats", "application/json", (request, response) -> {
+            response.header("Access-Control-Allow-Origin", "*");
+            response.header("Access-Control-Allow-Methods", "GET");
+
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("stages", ComparisonScheduler.getStats());
+            stats.put("matPool", MatPool.getStats());
+            stats.put("snapshotWrites", snapshotStorage.getWriteStats());
+
+            return stats;
+        }, new JsonTransformer());
+
         get("/snapshots/:datetime", "application/json", (request, response) ->
                 snapshotStorage.find(request.params(":datetime")), new JsonTransformer());
 
@@ -176,12 +314,17 @@ public class SnapshotApiService {
 
         get("/images/reports/:filename", "image/png", ((request, response) -> {
             try {
+                String fileName = request.params(":filename");
+
                 response.header("Access-Control-Allow-Origin", "*");
                 response.header("Access-Control-Allow-Methods", "GET");
-                response.header("Content-Type", "image/png");
+                response.header("Content-Type", fileName.endsWith(".webp") ? "image/webp" : "image/png");
                 response.header("Accept-Ranges", "bytes");
 
-                File image = new File(REPORTS_PATH + request.params(":filename"));
+                // Report can be returned before its diff images are saved
+                awaitImage(fileName);
+
+                File image = new File(REPORTS_PATH + fileName);
                 if (image.exists()) {
                     return new FileInputStream(image);
                 }
@@ -193,24 +336,73 @@ public class SnapshotApiService {
         }));
 
         post("/snapshots/create", ((request, response) -> {
-            Try<Snapshot> snapshot = parseJson(request.body(), new TypeReference<Snapshot>() {
+            Try<Snapshot> snapshot = parseJson(readBody(request), new TypeReference<Snapshot>() {
             });
             if (snapshot.isSuccess()) {
-                SnapshotStorage.getInstance().create(snapshot.get());
+                elementsCache.invalidate(snapshotStorage.create(snapshot.get()).get());
             }
 
             return response;
         }));
 
+        post("/snapshots/upload", (request, response) -> {
+            File imageFile = null;
+            boolean stored = false;
+
+            try {
+                request.attribute("org.eclipse.jetty.multipartConfig", MULTIPART_CONFIG);
+
+                Snapshot snapshot = parseJson(readPart(request.raw().getPart("snapshot")), new TypeReference<Snapshot>() {
+                }).get();
+
+                Part uploadedFile = request.raw().getPart("file");
+                String fileName = null;
+                String digest = null;
+                if (uploadedFile != null && uploadedFile.getSize() > 0) {
+                    fileName = toFileName(uploadedFile.getSubmittedFileName());
+                    digest = writeImage(uploadedFile, fileName);
+                    if (digest != null) {
+                        imageFile = new File(IMAGES_PATH + fileName);
+                        snapshotStorage.createImage(fileName, digest);
+                    } else {
+                        fileName = null;
+                    }
+                }
+
+                // The image is removed if the snapshot is not stored, so there are no orphaned images
+                snapshot.setUrl(fileName);
+                elementsCache.invalidate(snapshotStorage.create(snapshot, digest).get());
+                stored = true;
+
+                imageHashIndex.indexLater(fileName);
+
+                // Null is not mapped route for Spark, snapshot without screenshot returns empty file name
+                return (fileName != null) ? fileName : "";
+            } catch (Exception e) {
+                logger.error("[POST /snapshots/upload]", e);
+
+                response.status(500);
+                return "Could not store snapshot: " + e.getMessage();
+            } finally {
+                if (!stored && imageFile != null) {
+                    deleteQuietly(imageFile);
+                    String deletedName = imageFile.getName();
+                    Try.run(() -> snapshotStorage.deleteImage(deletedName))
+                            .onFailure(t -> logger.error("[POST /snapshots/upload] delete image " + deletedName, t));
+                }
+            }
+        });
+
         post("/upload/image", (request, response) -> {
             try {
-                request.attribute("org.eclipse.jetty.multipartConfig", new MultipartConfigElement(System.getProperty("java.io.tmpdir")));
+                request.attribute("org.eclipse.jetty.multipartConfig", MULTIPART_CONFIG);
 
                 Part uploadedFile = request.raw().getPart("file");
-                byte[] image = toByteArray(uploadedFile.getInputStream());
-                if (image.length > 0) {
-                    String fileName = uploadedFile.getSubmittedFileName();
-                    writeByteArrayToFile(new File(IMAGES_PATH + fileName), image);
+                String fileName = toFileName(uploadedFile.getSubmittedFileName());
+                String digest = writeImage(uploadedFile, fileName);
+                if (digest != null) {
+                    snapshotStorage.createImage(fileName, digest);
+                    imageHashIndex.indexLater(fileName);
 
                     return fileName;
                 }
@@ -222,172 +414,83 @@ public class SnapshotApiService {
         });
     }
 
-    private String createDiffReport(String actualDate, String expectedDate, int inaccuracy) {
-        String reportJson = "{}";
-        String datesHash = makeDatesHash(actualDate, expectedDate);
+    /*
+     * Streams the screenshot to a temporary file of the images directory computing its digest,
+     * then atomically moves it, so readers never see a partially written screenshot.
+     * Returns SHA-256 digest or null if the screenshot is empty.
+     */
+    private static String writeImage(Part uploadedFile, String fileName) throws IOException, NoSuchAlgorithmException {
+        Path imagesDir = Paths.get(IMAGES_PATH);
+        Path tempFile = Files.createTempFile(imagesDir, ".upload-", ".tmp");
 
         try {
-            Map<String, DiffSnapshot> diffSnapshots = new ConcurrentHashMap<>();
-
-            Set<String> storiesNames = ConcurrentHashMap.newKeySet();
-            Set<String> statesNames = ConcurrentHashMap.newKeySet();
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            long length = 0;
+            try (ReadableByteChannel in = Channels.newChannel(new DigestInputStream(uploadedFile.getInputStream(), digest));
+                 FileChannel out = FileChannel.open(tempFile, WRITE)) {
+                long transferred;
+                while ((transferred = out.transferFrom(in, length, UPLOAD_CHUNK_SIZE)) > 0) {
+                    length += transferred;
+                }
+            }
 
-            long start = System.currentTimeMillis();
-            List<Document> documents = snapshotStorage.aggregate(actualDate, expectedDate);
-            logger.info("[aggregate] " + actualDate + "-" + expectedDate + " documents:" + documents.size() + ", time ms: " + (System.currentTimeMillis() - start));
-
-            List<Future<?>> futureList = new LinkedList<>();
-
-            for (Document d : documents) {
-                futureList.add(imagesThreadsPool.submit(() -> {
-                    StringBuffer error = new StringBuffer("");
-
-                    List<Document> snapshots = (List) d.get("snapshot");
-
-                    Snapshot snapshot = new Snapshot(snapshots.get(0));
-                    String testcaseId = snapshot.getTestcaseId();
-                    String story = snapshot.getStory();
-                    String state = snapshot.getState();
-                    Browser browser = new Browser(snapshot.getDevice(), snapshot.getOsName(),
-                            snapshot.getOsVersion(), snapshot.getBrowserName(), snapshot.getBrowserVersion(),
-                            snapshot.getResolution(), snapshot.isRetina());
-                    String actualUrl = null;
-                    String expectedUrl = null;
-                    String actualServer = null;
-                    String expectedServer = null;
-                    String actualBranch = null;
-                    String expectedBranch = null;
-                    String actualCommit = null;
-                    String expectedCommit = null;
-                    Mat actualImage = null;
-                    Mat expectedImage = null;
-                    Pair<Float, String> diffImage = null;
-                    String pixels = null;
-                    Float diffPercentage = 0.000f;
-                    List<DiffElement> diffElements = new ArrayList<>();
-
-                    if (snapshots.size() == 2) {
-                        int actualIndex = 1;
-                        int expectedIndex = 0;
-                        if (snapshot.getDatetime().compareTo(Date.from(Instant.parse(expectedDate))) != 0) {
-                            actualIndex = 0;
-                            expectedIndex = 1;
-                        }
+            if (length == 0) {
+                return null;
+            }
 
-                        Snapshot actualSnapshot = new Snapshot(snapshots.get(actualIndex));
-                        Snapshot expectedSnapshot = new Snapshot(snapshots.get(expectedIndex));
+            Files.move(tempFile, imagesDir.resolve(fileName), ATOMIC_MOVE);
 
-                        actualUrl = actualSnapshot.getUrl();
-                        expectedUrl = expectedSnapshot.getUrl();
+            return HashCode.fromBytes(digest.digest()).toString();
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
 
-                        actualServer = actualSnapshot.getServer();
-                        expectedServer = expectedSnapshot.getServer();
+    private static String toFileName(String submittedFileName) {
+        Path fileName = isBlank(submittedFileName) ? null : Paths.get(submittedFileName).getFileName();
+        if (fileName == null || fileName.toString().startsWith(".")) {
+            throw new IllegalArgumentException("Invalid file name: " + submittedFileName);
+        }
 
-                        actualBranch = actualSnapshot.getBranch();
-                        expectedBranch = expectedSnapshot.getBranch();
+        return fileName.toString();
+    }
 
-                        actualCommit = actualSnapshot.getCommit();
-                        expectedCommit = expectedSnapshot.getCommit();
+    private static String readBody(Request request) throws IOException {
+        if ("gzip".equalsIgnoreCase(request.headers("Content-Encoding"))) {
+            try (InputStream body = new GZIPInputStream(new ByteArrayInputStream(request.bodyAsBytes()))) {
+                return IOUtils.toString(body, UTF_8);
+            }
+        }
 
-                        try {
-                            if (actualUrl != null && actualUrl.length() > 0 && new File(IMAGES_PATH + actualUrl).exists()) {
-                                actualImage = imread(IMAGES_PATH + actualUrl, CV_LOAD_IMAGE_UNCHANGED);
-                            } else {
-                                error.append("Image not found: actual " + actualUrl).append("\n");
-                            }
+        return request.body();
+    }
 
-                            if (expectedUrl != null && expectedUrl.length() > 0 && new File(IMAGES_PATH + expectedUrl).exists()) {
-                                expectedImage = imread(IMAGES_PATH + expectedUrl, CV_LOAD_IMAGE_UNCHANGED);
-                            } else {
-                                error.append("Image not found: expected " + expectedUrl).append("\n");
-                            }
+    private static String readPart(Part part) throws IOException {
+        try (InputStream body = "application/gzip".equals(part.getContentType())
+                ? new GZIPInputStream(part.getInputStream()) : part.getInputStream()) {
+            return IOUtils.toString(body, UTF_8);
+        }
+    }
 
-                            if (actualImage != null && expectedImage != null) {
-                                diffImage = assertImage(actualImage, expectedImage, browser.isRetina(), inaccuracy, error);
-
-                                boolean image = false;
-                                if (diffImage != null && diffImage.getKey() > 0 && diffImage.getValue() != null) {
-                                    image = true;
-
-                                    diffPercentage = Float.valueOf(String.format(Locale.US, "%.3f", diffImage.getKey()));
-                                    pixels = String.format("%s/images/reports/%s", BACKEND_DOMAIN, diffImage.getValue());
-                                }
-
-                                if (actualSnapshot.getElements() != null
-                                        && expectedSnapshot.getElements() != null
-                                        && actualSnapshot.getElements().length() > 0
-                                        && expectedSnapshot.getElements().length() > 0) {
-                                    try {
-                                        diffElements = getDiffElements(image, actualSnapshot, expectedSnapshot, actualImage, expectedImage, browser.isRetina(), inaccuracy, error);
-                                    } catch (Exception e) {
-                                        error.append("Could not parse elements").append("\n");
-                                    }
-                                }
-                            } else {
-                                error.append("Images not found: actual ").append(actualUrl)
-                                        .append(" , expected ").append(expectedUrl)
-                                        .append("\n");
-                            }
-                        } catch (Exception e) {
-                            logger.error("[error report] " + actualDate + "-" + expectedDate, e);
-                        } finally {
-                            if (actualImage != null) {
-                                actualImage.release();
-                            }
+    private String createDiffReport(String actualDate, String expectedDate, int inaccuracy, boolean triageMode, boolean roi, boolean reload) {
+        String reportJson = "{}";
 
-                            if (expectedImage != null) {
-                                expectedImage.release();
-                            }
+        try {
+            Map<String, DiffSnapshot> diffSnapshots = new ConcurrentHashMap<>();
 
-                            System.gc();
-                        }
-                    } else if (snapshots.size() == 1) {
-                        String errorFormat = "%s snapshot not found";
-                        if (snapshot.getDatetime().compareTo(Date.from(Instant.parse(actualDate))) == 0) {
-                            actualUrl = snapshot.getUrl();
-                            actualServer = snapshot.getServer();
-                            actualBranch = snapshot.getBranch();
-                            actualCommit = snapshot.getCommit();
-
-                            error.append(String.format(errorFormat, "expected")).append("\n");
-                        } else {
-                            expectedUrl = snapshot.getUrl();
-                            expectedServer = snapshot.getServer();
-                            expectedBranch = snapshot.getBranch();
-                            expectedCommit = snapshot.getCommit();
-
-                            error.append(String.format(errorFormat, "actual")).append("\n");
-                        }
-                    } else if (snapshots.size() == 0) {
-                        error.append("Not found snapshots").append("\n");
-                    }
+            Set<String> storiesNames = ConcurrentHashMap.newKeySet();
+            Set<String> statesNames = ConcurrentHashMap.newKeySet();
 
-                    String actualScreen = (actualUrl != null && actualUrl.length() > 0) ?
-                            String.format("%s/images/original/%s", BACKEND_DOMAIN, actualUrl) : null;
-                    String expectedScreen = (expectedUrl != null && expectedUrl.length() > 0) ?
-                            String.format("%s/images/original/%s", BACKEND_DOMAIN, expectedUrl) : null;
-
-                    DiffSnapshot diffSnapshot = new DiffSnapshot();
-                    diffSnapshot.setTestcaseId(testcaseId);
-                    diffSnapshot.setDiffPercentage(diffPercentage);
-                    diffSnapshot.setPixels(pixels);
-                    diffSnapshot.setError(error.toString());
-                    diffSnapshot.setBrowser(browser);
-                    diffSnapshot.setImages(new Result(actualScreen, expectedScreen));
-                    diffSnapshot.setElements(diffElements);
-                    diffSnapshot.setServer(new Result(actualServer, expectedServer));
-                    diffSnapshot.setBranch(new Result(actualBranch, expectedBranch));
-                    diffSnapshot.setCommit(new Result(actualCommit, expectedCommit));
-
-                    storiesNames.add(story);
-                    statesNames.add(makeStateHash(story, state));
-                    diffSnapshots.put(makeSnapshotHash(story, state, browser), diffSnapshot);
-                }));
-            }
+            compareSnapshots(actualDate, expectedDate, inaccuracy, triageMode, roi, reload, diffStreamSnapshot -> {
+                String story = diffStreamSnapshot.getStory();
+                String state = diffStreamSnapshot.getState();
+                DiffSnapshot diffSnapshot = diffStreamSnapshot.getSnapshot();
 
-            for (Future<?> f : futureList) {
-                f.get();
-            }
+                storiesNames.add(story);
+                statesNames.add(makeStateHash(story, state));
+                diffSnapshots.put(makeSnapshotHash(story, state, diffSnapshot.getBrowser()), diffSnapshot);
+            });
 
             DiffReport diffReport = new DiffReport();
 
@@ -423,7 +526,10 @@ public class SnapshotApiService {
             Try<String> json = writeAsString(diffReport);
             if (json.isSuccess()) {
                 reportJson = json.get();
-                saveReport(datesHash, reportJson);
+
+                if (!triageMode) {
+                    reportCache.put(ReportCache.makeKey(actualDate, expectedDate, inaccuracy, roi), reportJson);
+                }
             }
         } catch (Exception e) {
             logger.error("[create report] " + actualDate + "-" + expectedDate, e);
@@ -432,19 +538,339 @@ public class SnapshotApiService {
         return reportJson;
     }
 
+    /*
+     * Compares snapshots of actual and expected dates and passes each compared snapshot to consumer as soon as it's ready.
+     */
+    private void compareSnapshots(String actualDate, String expectedDate, int inaccuracy, boolean triageMode, boolean roi, boolean reload,
+                                  Consumer<DiffStreamSnapshot> consumer) throws Exception {
+        long start = System.currentTimeMillis();
+        List<Future<?>> futureList = new LinkedList<>();
+
+        // Comparisons start with the first batch, a full DECODE queue slows down reading of the cursor
+        try (MongoCursor<Document> documents = snapshotStorage.aggregate(actualDate, expectedDate)) {
+            while (documents.hasNext()) {
+                Document d = documents.next();
+                futureList.add(submit(DECODE, () ->
+                        consumer.accept(createDiffSnapshot(d, actualDate, expectedDate, inaccuracy, triageMode, roi, reload))));
+            }
+        }
+        logger.info("[aggregate] " + actualDate + "-" + expectedDate + " documents:" + futureList.size() + ", time ms: " + (System.currentTimeMillis() - start));
+
+        for (Future<?> f : futureList) {
+            f.get();
+        }
+    }
+
+    /*
+     * Compared snapshots are written by the request thread, so a slow client doesn't hold shared DECODE threads.
+     * At most STREAM_QUEUE_SIZE comparisons are submitted ahead of the client, the rest wait in the cursor.
+     * If the client is disconnected remaining comparisons are cancelled.
+     */
+    private void streamSnapshots(String actualDate, String expectedDate, int inaccuracy, boolean triageMode, boolean roi, boolean reload,
+                                 Writer writer) throws Exception {
+        BlockingQueue<Try<DiffStreamSnapshot>> results = new ArrayBlockingQueue<>(STREAM_QUEUE_SIZE);
+        List<Future<?>> futureList = new LinkedList<>();
+        int pending = 0;
+
+        try (MongoCursor<Document> documents = snapshotStorage.aggregate(actualDate, expectedDate)) {
+            while (documents.hasNext()) {
+                if (pending == STREAM_QUEUE_SIZE) {
+                    writeStream(writer, results.take().get());
+                    pending--;
+                }
+
+                Document d = documents.next();
+                futureList.add(submit(DECODE, () ->
+                        results.add(Try.of(() -> createDiffSnapshot(d, actualDate, expectedDate, inaccuracy, triageMode, roi, reload)))));
+                pending++;
+            }
+
+            for (; pending > 0; pending--) {
+                writeStream(writer, results.take().get());
+            }
+        } catch (Exception e) {
+            futureList.forEach(f -> f.cancel(false));
+            throw e;
+        }
+    }
+
+    private void writeStream(Writer writer, DiffStreamSnapshot diffStreamSnapshot) throws IOException {
+        Try<String> json = writeAsString(diffStreamSnapshot);
+        if (json.isSuccess()) {
+            writer.write(json.get());
+            writer.write("\n");
+            writer.flush();
+        }
+    }
+
+    private DiffStreamSnapshot createDiffSnapshot(Document d, String actualDate, String expectedDate, int inaccuracy, boolean triageMode, boolean roi,
+                                                  boolean reload) {
+        StringBuffer error = new StringBuffer("");
+
+        List<Document> snapshots = (List) d.get("snapshot");
+
+        Snapshot snapshot = new Snapshot(snapshots.get(0));
+        String testcaseId = snapshot.getTestcaseId();
+        String story = snapshot.getStory();
+        String state = snapshot.getState();
+        Browser browser = new Browser(snapshot.getDevice(), snapshot.getOsName(),
+                snapshot.getOsVersion(), snapshot.getBrowserName(), snapshot.getBrowserVersion(),
+                snapshot.getResolution(), snapshot.isRetina());
+        String actualUrl = null;
+        String expectedUrl = null;
+        String actualServer = null;
+        String expectedServer = null;
+        String actualBranch = null;
+        String expectedBranch = null;
+        String actualCommit = null;
+        String expectedCommit = null;
+        Mat actualImage = null;
+        Mat expectedImage = null;
+        ImageSource actualSource = null;
+        ImageSource expectedSource = null;
+        Pair<Float, String> diffImage = null;
+        String pixels = null;
+        Integer pixelsLeft = null;
+        Integer pixelsTop = null;
+        Float diffPercentage = 0.000f;
+        List<DiffElement> diffElements = new ArrayList<>();
+        Triage triage = AMBIGUOUS;
+
+        if (snapshots.size() == 2) {
+            int actualIndex = 1;
+            int expectedIndex = 0;
+            if (snapshot.getDatetime().compareTo(Date.from(Instant.parse(expectedDate))) != 0) {
+                actualIndex = 0;
+                expectedIndex = 1;
+            }
+
+            Snapshot actualSnapshot = new Snapshot(snapshots.get(actualIndex));
+            Snapshot expectedSnapshot = new Snapshot(snapshots.get(expectedIndex));
+
+            actualUrl = actualSnapshot.getUrl();
+            expectedUrl = expectedSnapshot.getUrl();
+
+            actualServer = actualSnapshot.getServer();
+            expectedServer = expectedSnapshot.getServer();
+
+            actualBranch = actualSnapshot.getBranch();
+            expectedBranch = expectedSnapshot.getBranch();
+
+            actualCommit = actualSnapshot.getCommit();
+            expectedCommit = expectedSnapshot.getCommit();
+
+            try {
+                boolean actualExists = actualUrl != null && actualUrl.length() > 0 && new File(IMAGES_PATH + actualUrl).exists();
+                if (!actualExists) {
+                    error.append("Image not found: actual " + actualUrl).append("\n");
+                }
+
+                boolean expectedExists = expectedUrl != null && expectedUrl.length() > 0 && new File(IMAGES_PATH + expectedUrl).exists();
+                if (!expectedExists) {
+                    error.append("Image not found: expected " + expectedUrl).append("\n");
+                }
+
+                boolean identical = actualExists && expectedExists && isIdentical(actualSnapshot, expectedSnapshot);
+                if (triageMode && actualExists && expectedExists && !identical) {
+                    triage = imageHashIndex.triage(actualUrl, expectedUrl);
+                }
+
+                String comparisonKey = (identical || (actualExists && expectedExists && triage == AMBIGUOUS)) ?
+                        ComparisonCache.makeKey(actualSnapshot, expectedSnapshot, browser.isRetina(), inaccuracy, roi) : null;
+                // Reloaded report compares all pairs again and replaces their cached results
+                DiffSnapshot comparison = reload ? null : comparisonCache.get(comparisonKey);
+
+                if (comparison != null) {
+                    // Unchanged pair of images and elements was already compared for one of previous reports
+                    if (identical) {
+                        triage = EQUAL;
+                    }
+
+                    diffPercentage = comparison.getDiffPercentage();
+                    pixels = comparison.getPixels();
+                    pixelsLeft = comparison.getPixelsLeft();
+                    pixelsTop = comparison.getPixelsTop();
+                    diffElements = comparison.getElements();
+                } else if (identical) {
+                    triage = EQUAL;
+
+                    // Byte-identical screenshots have no pixels difference, only size of screenshot is read to compare changed elements
+                    if (hasElements(actualSnapshot, expectedSnapshot)) {
+                        try {
+                            if (isSameElements(actualSnapshot, expectedSnapshot)) {
+                                diffElements = getNotFoundElements(actualSnapshot, error);
+                            } else {
+                                actualSource = new FileImageSource(IMAGES_PATH + actualUrl);
+                                diffElements = getDiffElements(false, actualSnapshot, expectedSnapshot, actualSource, actualSource, browser.isRetina(), inaccuracy, error);
+                            }
+                        } catch (Exception e) {
+                            error.append("Could not parse elements").append("\n");
+                        }
+                    }
+                } else if (triage != AMBIGUOUS) {
+                    // Triage report doesn't compare pixels and elements of certainly different screenshots
+                    logger.debug("[triage] " + actualUrl + " " + expectedUrl + ": " + triage);
+                    if (triage == RESIZED) {
+                        error.append("Screenshots are different by size, pixels and elements are not compared").append("\n");
+                    } else {
+                        error.append("Screenshots are different by perceptual hash, pixels and elements are not compared").append("\n");
+                    }
+                } else {
+                    Element.Area regionOfInterest = null;
+                    if (roi && actualExists && expectedExists && hasElements(actualSnapshot, expectedSnapshot)) {
+                        actualSource = new FileImageSource(IMAGES_PATH + actualUrl);
+                        expectedSource = new FileImageSource(IMAGES_PATH + expectedUrl);
+
+                        regionOfInterest = getRegionOfInterest(actualSnapshot, expectedSnapshot, actualSource, expectedSource, browser.isRetina());
+                    }
+
+                    Rect region = null;
+                    if (regionOfInterest != null) {
+                        // Only rows of the region are decoded, they are kept by sources for elements comparison
+                        region = toRect(regionOfInterest, browser.isRetina());
+                        actualImage = actualSource.read(region);
+                        expectedImage = expectedSource.read(region);
+                    } else {
+                        if (actualExists) {
+                            actualImage = imread(IMAGES_PATH + actualUrl, CV_LOAD_IMAGE_UNCHANGED);
+                        }
+
+                        if (expectedExists) {
+                            expectedImage = imread(IMAGES_PATH + expectedUrl, CV_LOAD_IMAGE_UNCHANGED);
+                        }
+                    }
+
+                    if (actualImage != null && expectedImage != null) {
+                        diffImage = assertImage(actualImage, expectedImage, browser.isRetina(), inaccuracy, error);
+
+                        if (regionOfInterest == null) {
+                            if (max(actualImage.height(), expectedImage.height()) > REGION_DECODE_HEIGHT) {
+                                actualImage.release();
+                                expectedImage.release();
+
+                                actualSource = new FileImageSource(IMAGES_PATH + actualUrl);
+                                expectedSource = new FileImageSource(IMAGES_PATH + expectedUrl);
+                            } else {
+                                actualSource = new MatImageSource(actualImage);
+                                expectedSource = new MatImageSource(expectedImage);
+                            }
+                        }
+
+                        boolean image = false;
+                        if (diffImage != null && diffImage.getKey() > 0 && diffImage.getValue() != null) {
+                            image = true;
+
+                            diffPercentage = Float.valueOf(String.format(Locale.US, "%.3f", diffImage.getKey()));
+                            pixels = String.format("%s/images/reports/%s", BACKEND_DOMAIN, diffImage.getValue());
+
+                            // Diff image of the region of interest is overlaid at the region offset on the screenshot
+                            if (region != null) {
+                                pixelsLeft = region.x;
+                                pixelsTop = region.y;
+                            }
+                        }
+
+                        if (hasElements(actualSnapshot, expectedSnapshot)) {
+                            try {
+                                diffElements = getDiffElements(image, actualSnapshot, expectedSnapshot, actualSource, expectedSource, browser.isRetina(), inaccuracy, error);
+                            } catch (Exception e) {
+                                error.append("Could not parse elements").append("\n");
+                            }
+                        }
+                    } else {
+                        error.append("Images not found: actual ").append(actualUrl)
+                                .append(" , expected ").append(expectedUrl)
+                                .append("\n");
+                    }
+                }
+
+                if (comparisonKey != null && comparison == null && error.length() == 0) {
+                    comparison = new DiffSnapshot();
+                    comparison.setDiffPercentage(diffPercentage);
+                    comparison.setPixels(pixels);
+                    comparison.setPixelsLeft(pixelsLeft);
+                    comparison.setPixelsTop(pixelsTop);
+                    comparison.setElements(diffElements);
+
+                    comparisonCache.put(comparisonKey, comparison);
+                }
+            } catch (Exception e) {
+                logger.error("[error report] " + actualDate + "-" + expectedDate, e);
+            } finally {
+                if (actualImage != null) {
+                    actualImage.release();
+                }
+
+                if (expectedImage != null) {
+                    expectedImage.release();
+                }
+
+                if (actualSource != null) {
+                    actualSource.close();
+                }
+
+                if (expectedSource != null) {
+                    expectedSource.close();
+                }
+            }
+        } else if (snapshots.size() == 1) {
+            String errorFormat = "%s snapshot not found";
+            if (snapshot.getDatetime().compareTo(Date.from(Instant.parse(actualDate))) == 0) {
+                actualUrl = snapshot.getUrl();
+                actualServer = snapshot.getServer();
+                actualBranch = snapshot.getBranch();
+                actualCommit = snapshot.getCommit();
+
+                error.append(String.format(errorFormat, "expected")).append("\n");
+            } else {
+                expectedUrl = snapshot.getUrl();
+                expectedServer = snapshot.getServer();
+                expectedBranch = snapshot.getBranch();
+                expectedCommit = snapshot.getCommit();
+
+                error.append(String.format(errorFormat, "actual")).append("\n");
+            }
+        } else if (snapshots.size() == 0) {
+            error.append("Not found snapshots").append("\n");
+        }
+
+        String actualScreen = (actualUrl != null && actualUrl.length() > 0) ?
+                String.format("%s/images/original/%s", BACKEND_DOMAIN, actualUrl) : null;
+        String expectedScreen = (expectedUrl != null && expectedUrl.length() > 0) ?
+                String.format("%s/images/original/%s", BACKEND_DOMAIN, expectedUrl) : null;
+
+        DiffSnapshot diffSnapshot = new DiffSnapshot();
+        diffSnapshot.setTestcaseId(testcaseId);
+        diffSnapshot.setDiffPercentage(diffPercentage);
+        diffSnapshot.setPixels(pixels);
+        diffSnapshot.setPixelsLeft(pixelsLeft);
+        diffSnapshot.setPixelsTop(pixelsTop);
+        diffSnapshot.setError(error.toString());
+        diffSnapshot.setBrowser(browser);
+        diffSnapshot.setImages(new Result(actualScreen, expectedScreen));
+        diffSnapshot.setElements(diffElements);
+        diffSnapshot.setServer(new Result(actualServer, expectedServer));
+        diffSnapshot.setBranch(new Result(actualBranch, expectedBranch));
+        diffSnapshot.setCommit(new Result(actualCommit, expectedCommit));
+
+        if (triageMode) {
+            diffSnapshot.setTriage(triage.name().toLowerCase());
+        }
+
+        return new DiffStreamSnapshot(story, state, diffSnapshot);
+    }
+
     private List<DiffElement> getDiffElements(boolean image,
                                               Snapshot actualElements, Snapshot expectedElements,
-                                              Mat actualImage, Mat expectedImage,
+                                              ImageSource actualImage, ImageSource expectedImage,
                                               boolean isRetina,
                                               int inaccuracy,
                                               StringBuffer error) {
-        Try<HashMap<String, Element>> actualTry = parseJson(actualElements.getElements(), new TypeReference<HashMap<String, Element>>() {});
-        Try<HashMap<String, Element>> expectedTry = parseJson(expectedElements.getElements(), new TypeReference<HashMap<String, Element>>() {});
-
-        if (actualTry.isSuccess() && expectedTry.isSuccess()) {
-            HashMap<String, Element> actual = actualTry.get();
-            HashMap<String, Element> expected = expectedTry.get();
+        elementsCache.load(actualElements, expectedElements);
+        HashMap<String, Element> actual = elementsCache.get(actualElements);
+        HashMap<String, Element> expected = elementsCache.get(expectedElements);
 
+        if (actual != null && expected != null) {
             return compare(image, actual, expected, actualImage, expectedImage, isRetina, inaccuracy, error);
         } else {
             error.append("Could not parse elements json: actual " + actualElements.getElements()).append("\n")
@@ -453,34 +879,58 @@ public class SnapshotApiService {
         }
     }
 
-    private String makeSnapshotHash(String story, String state, DiffSnapshot.Browser browser) {
-        return String.format("%s|&story&|%s|&state&|%s", story, state, browser.toString());
-    }
+    private Element.Area getRegionOfInterest(Snapshot actualElements, Snapshot expectedElements,
+                                             ImageSource actualImage, ImageSource expectedImage,
+                                             boolean isRetina) {
+        elementsCache.load(actualElements, expectedElements);
+        HashMap<String, Element> actual = elementsCache.get(actualElements);
+        HashMap<String, Element> expected = elementsCache.get(expectedElements);
 
-    private String makeStateHash(String story, String state) {
-        return String.format("%s|&story&|%s", story, state);
+        if (actual != null && expected != null) {
+            return ElementsComparator.getRegionOfInterest(actual, expected, actualImage, expectedImage, isRetina);
+        }
+
+        return null;
     }
 
-    private String makeDatesHash(String actualDate, String expectedDate) {
-        StringBuilder hash = new StringBuilder();
-        hash.append(actualDate.replaceAll(":", "-").replaceAll("\\.", "-"))
-                .append("_")
-                .append(expectedDate.replaceAll(":", "-").replaceAll("\\.", "-"));
+    private List<DiffElement> getNotFoundElements(Snapshot snapshot, StringBuffer error) {
+        elementsCache.load(snapshot);
+        HashMap<String, Element> elements = elementsCache.get(snapshot);
 
-        return hash.toString();
+        if (elements != null) {
+            return compareNotFound(elements);
+        } else {
+            error.append("Could not parse elements json: " + snapshot.getElements()).append("\n");
+            return new ArrayList<>();
+        }
     }
 
-    public static String saveReport(String datesHash, String json) {
-        if (json != null) {
-            try {
-                String fileName = datesHash + ".json";
-                Files.write(Paths.get(REPORTS_PATH, fileName), json.getBytes("UTF-8"));
-                return fileName;
-            } catch (Exception e) {
-                logger.error("[save report]", e);
-            }
+    private boolean hasElements(Snapshot actual, Snapshot expected) {
+        return actual.hasElements() && expected.hasElements();
+    }
+
+    /*
+     * Elements digest covers elements and default CSS values, elements are loaded only for snapshots without digest.
+     */
+    private boolean isSameElements(Snapshot actual, Snapshot expected) {
+        if (actual.getElementsDigest() != null && expected.getElementsDigest() != null) {
+            return actual.getElementsDigest().equals(expected.getElementsDigest());
         }
 
-        return "";
+        elementsCache.loadJson(actual, expected);
+        return Objects.equals(actual.getElements(), expected.getElements())
+                && Objects.equals(actual.getCssDefaults(), expected.getCssDefaults());
+    }
+
+    private boolean isIdentical(Snapshot actual, Snapshot expected) {
+        return actual.getDigest() != null && actual.getDigest().equals(expected.getDigest());
+    }
+
+    private String makeSnapshotHash(String story, String state, DiffSnapshot.Browser browser) {
+        return String.format("%s|&story&|%s|&state&|%s", story, state, browser.toString());
+    }
+
+    private String makeStateHash(String story, String state) {
+        return String.format("%s|&story&|%s", story, state);
     }
 }
\ No newline at end of file
@@ -22,32 +22,66 @@ package ru.tinkoff;
 import com.mongodb.BasicDBObject;
 import com.mongodb.Block;
 import com.mongodb.DBObject;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import org.bson.Document;
 import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.tinkoff.SnapshotWriteBuffer.PendingWrite;
 import ru.tinkoff.objects.Snapshot;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
+import static com.google.common.hash.Hashing.sha256;
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static com.mongodb.client.model.Accumulators.addToSet;
 import static com.mongodb.client.model.Accumulators.push;
+import static com.mongodb.client.model.Accumulators.sum;
 import static com.mongodb.client.model.Aggregates.group;
 import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.out;
 import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Indexes.ascending;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.descending;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 
 public class SnapshotStorage {
 
     private MongoDatabase db;
     private MongoCollection<Document> collection;
+    private MongoCollection<Document> images;
+    private MongoCollection<Document> runs;
+    private SnapshotWriteBuffer writeBuffer;
     private static final String DB_NAME = "visualapp";
     private static final String DB_HOST = System.getProperty("mongodb.host");
     private static final int DB_PORT = Integer.parseInt(System.getProperty("mongodb.port"));
 
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotStorage.class);
+
     private static SnapshotStorage instance = null;
 
     public static SnapshotStorage getInstance() {
@@ -60,10 +94,23 @@ public class SnapshotStorage {
     private SnapshotStorage() {
         this.db = mongo();
         this.collection = db.getCollection("snapshots");
+        this.images = db.getCollection("images");
+        this.runs = db.getCollection("runs");
+
+        // Reports and snapshots of a run are selected by datetime and grouped by hash
+        this.collection.createIndex(ascending("datetime", "hash"), new IndexOptions().background(true));
+
+        createRuns();
+
+        this.writeBuffer = new SnapshotWriteBuffer(this::write);
     }
 
-    public List<Document> aggregate(String actualDate, String expectedDate) {
+    /*
+     * Returns a cursor of snapshots grouped by hash, documents are fetched by batches while the cursor is read.
+     */
+    public MongoCursor<Document> aggregate(String actualDate, String expectedDate) {
         DBObject pushFields = new BasicDBObject();
+        pushFields.put("_id", "$_id");
         pushFields.put("server", "$server");
         pushFields.put("branch", "$branch");
         pushFields.put("commit", "$commit");
@@ -71,8 +118,11 @@ public class SnapshotStorage {
         pushFields.put("story", "$story");
         pushFields.put("state", "$state");
         pushFields.put("datetime", "$datetime");
-        pushFields.put("elements", "$elements");
+        // Elements are loaded by findElements only for snapshots which elements are compared
+        pushFields.put("withElements", new BasicDBObject("$gt", asList("$elements", "")));
+        pushFields.put("elementsDigest", "$elementsDigest");
         pushFields.put("url", "$url");
+        pushFields.put("digest", "$digest");
         pushFields.put("device", "$device");
         pushFields.put("osName", "$osName");
         pushFields.put("osVersion", "$osVersion");
@@ -81,61 +131,103 @@ public class SnapshotStorage {
         pushFields.put("resolution", "$resolution");
         pushFields.put("retina", "$retina");
 
-        List<Document> documents = collection.aggregate(asList(
-                match(regex("_id", "^(" + actualDate + "|" + expectedDate + ")")),
+        return collection.aggregate(asList(
+                match(in("datetime", toDate(actualDate), toDate(expectedDate))),
                 group("$hash", push("snapshot", pushFields))))
                 .batchSize(500)
                 .allowDiskUse(true)
-                .into(new ArrayList<>());
-
-        return documents;
+                .iterator();
     }
 
-    public List<Document> find() {
-        List<Bson> matchFilters = new ArrayList<>();
-
-        DBObject groupFields = new BasicDBObject();
-        groupFields.put("datetime", "$datetime");
+    /*
+     * Returns summaries of test runs ordered from the latest, which are older than after datetime if it's set.
+     */
+    public List<Document> findRuns(String after, int limit) {
+        Bson filter = isNullOrEmpty(after) ? new Document() : lt("_id", toDate(after));
 
-        DBObject pushFields = new BasicDBObject();
-        pushFields.put("server", "$server");
-        pushFields.put("branch", "$branch");
-        pushFields.put("commit", "$commit");
-        pushFields.put("testcaseId", "$testcaseId");
-        pushFields.put("story", "$story");
-        pushFields.put("state", "$state");
-        pushFields.put("url", "$url");
-
-        List<Bson> pipeline = new ArrayList<>();
-        if (matchFilters.size() > 0) {
-            pipeline.add(match(and(matchFilters)));
-        }
-        pipeline.add(group(new BasicDBObject("_id", groupFields), push("snapshot", pushFields)));
-
-        List<Document> documents = collection.aggregate(pipeline)
-                .allowDiskUse(true)
+        return runs.find(filter)
+                .sort(descending("_id"))
+                .limit(limit)
                 .into(new ArrayList<>());
+    }
 
-        return documents;
+    /*
+     * Returns elements and default CSS values of snapshots by one query.
+     */
+    public List<Document> findElements(Collection<String> ids) {
+        return collection.find(in("_id", ids))
+                .projection(include("elements", "cssDefaults"))
+                .into(new ArrayList<>());
     }
 
     public List<Snapshot> find(String datetime) {
         List<Snapshot> snapshots = new ArrayList<>();
-        collection.find(eq("datetime", Date.from(Instant.parse(datetime))))
+        collection.find(eq("datetime", toDate(datetime)))
                 .forEach((Block<? super Document>) d -> snapshots.add(new Snapshot(d)));
         return snapshots;
     }
 
-    public void create(Snapshot snapshot) {
+    public void createImage(String fileName, String digest) {
+        // Perceptual hash of the replaced image is computed again by the next triage
+        images.updateOne(eq("_id", fileName),
+                new Document("$set", new Document("digest", digest))
+                        .append("$unset", new Document("dhash", "").append("width", "").append("height", "")),
+                new UpdateOptions().upsert(true));
+    }
+
+    public void updateImageHash(String fileName, long hash, int width, int height) {
+        images.updateOne(eq("_id", fileName),
+                new Document("$set", new Document("dhash", hash).append("width", width).append("height", height)),
+                new UpdateOptions().upsert(true));
+    }
+
+    public void deleteImage(String fileName) {
+        images.deleteOne(eq("_id", fileName));
+    }
+
+    public Document findImage(String fileName) {
+        return images.find(eq("_id", fileName)).first();
+    }
+
+    /*
+     * Returns a future of id of the created or updated snapshot, it's completed when the snapshot is stored.
+     * Snapshot is upserted by id, so the same snapshot could be sent again.
+     */
+    public CompletableFuture<String> create(Snapshot snapshot) throws InterruptedException {
+        // Digest sent by a client is not trusted, identical digests skip pixels comparison
+        String digest = null;
+        if (snapshot.getUrl() != null) {
+            Document image = findImage(snapshot.getUrl());
+            digest = (image != null) ? image.getString("digest") : null;
+        }
+
+        return create(snapshot, digest);
+    }
+
+    /*
+     * Creates snapshot with digest of its image computed by the server.
+     */
+    public CompletableFuture<String> create(Snapshot snapshot, String digest) throws InterruptedException {
+
+        // Default CSS values are a part of elements, they are restored into elements css before comparison
+        String elementsDigest = null;
+        if (snapshot.getElements() != null && snapshot.getElements().length() > 0) {
+            String elements = (snapshot.getCssDefaults() != null) ?
+                    snapshot.getElements() + snapshot.getCssDefaults() : snapshot.getElements();
+            elementsDigest = sha256().hashString(elements, UTF_8).toString();
+        }
+
         Document updateFields = new Document()
                 .append("elements", snapshot.getElements())
-                .append("url", snapshot.getUrl());
+                .append("elementsDigest", elementsDigest)
+                .append("cssDefaults", snapshot.getCssDefaults())
+                .append("url", snapshot.getUrl())
+                .append("digest", digest);
 
         String hash = snapshot.getHash();
         String id = snapshot.getDatetime().toInstant() + "|&datetime&|" + hash;
 
         Document insertFields = new Document()
-                .append("_id", id)
                 .append("hash", hash)
                 .append("branch", snapshot.getBranch())
                 .append("server", snapshot.getServer())
@@ -144,8 +236,6 @@ public class SnapshotStorage {
                 .append("testcaseId", snapshot.getTestcaseId())
                 .append("story", snapshot.getStory())
                 .append("state", snapshot.getState())
-                .append("elements", snapshot.getElements())
-                .append("url", snapshot.getUrl())
                 .append("device", snapshot.getDevice())
                 .append("osName", snapshot.getOsName())
                 .append("osVersion", snapshot.getOsVersion())
@@ -154,14 +244,104 @@ public class SnapshotStorage {
                 .append("resolution", snapshot.getResolution())
                 .append("retina", snapshot.isRetina());
 
-        Document founded = collection.find(eq("_id", id)).first();
-        if (founded != null) {
-            collection.updateOne(new BasicDBObject("_id", id), new Document("$set", updateFields));
-        } else {
-            collection.insertOne(insertFields);
+        UpdateOneModel<Document> upsert = new UpdateOneModel<>(eq("_id", id),
+                new Document("$set", updateFields).append("$setOnInsert", insertFields),
+                new UpdateOptions().upsert(true));
+
+        return writeBuffer.add(id, snapshot, upsert);
+    }
+
+    public SnapshotWriteBuffer.WriteStats getWriteStats() {
+        return writeBuffer.getStats();
+    }
+
+    private void write(List<PendingWrite> writes) {
+        List<WriteModel<Document>> models = new ArrayList<>(writes.size());
+        writes.forEach(write -> models.add(write.getModel()));
+
+        BulkWriteResult result;
+        try {
+            result = collection.bulkWrite(models, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                writes.get(error.getIndex()).fail(new MongoException(error.getCode(), error.getMessage()));
+            }
+            result = e.getWriteResult();
+        }
+
+        List<Snapshot> inserted = new ArrayList<>();
+        for (BulkWriteUpsert upsert : result.getUpserts()) {
+            inserted.add(writes.get(upsert.getIndex()).getSnapshot());
+        }
+
+        try {
+            updateRuns(inserted);
+        } catch (Exception e) {
+            logger.error("[update runs]", e);
         }
     }
 
+    /*
+     * Run summary is updated once per inserted snapshot, so GET /snapshots never scans snapshots collection.
+     */
+    private void updateRuns(List<Snapshot> inserted) {
+        Map<Date, List<Snapshot>> runsSnapshots = new LinkedHashMap<>();
+        inserted.forEach(snapshot -> runsSnapshots.computeIfAbsent(snapshot.getDatetime(), d -> new ArrayList<>()).add(snapshot));
+
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        runsSnapshots.forEach((datetime, snapshots) -> {
+            Set<String> servers = new HashSet<>();
+            Set<String> branches = new HashSet<>();
+            Set<String> commits = new HashSet<>();
+            for (Snapshot snapshot : snapshots) {
+                addNotNull(servers, snapshot.getServer());
+                addNotNull(branches, snapshot.getBranch());
+                addNotNull(commits, snapshot.getCommit());
+            }
+
+            Document update = new Document("$inc", new Document("count", snapshots.size()))
+                    .append("$addToSet", new Document()
+                            .append("servers", new Document("$each", new ArrayList<>(servers)))
+                            .append("branches", new Document("$each", new ArrayList<>(branches)))
+                            .append("commits", new Document("$each", new ArrayList<>(commits))));
+
+            updates.add(new UpdateOneModel<>(eq("_id", datetime), update, new UpdateOptions().upsert(true)));
+        });
+
+        if (!updates.isEmpty()) {
+            runs.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+        }
+    }
+
+    private static void addNotNull(Set<String> values, String value) {
+        if (value != null) {
+            values.add(value);
+        }
+    }
+
+    /*
+     * Builds summaries of runs stored before runs collection existed.
+     */
+    private void createRuns() {
+        if (runs.find().first() != null || collection.find().first() == null) {
+            return;
+        }
+
+        collection.aggregate(asList(
+                group("$datetime",
+                        sum("count", 1),
+                        addToSet("servers", "$server"),
+                        addToSet("branches", "$branch"),
+                        addToSet("commits", "$commit")),
+                out(runs.getNamespace().getCollectionName())))
+                .allowDiskUse(true)
+                .toCollection();
+    }
+
+    private static Date toDate(String datetime) {
+        return Date.from(Instant.parse(datetime));
+    }
+
     private MongoDatabase mongo() {
         MongoClient mongoClient = new MongoClient(DB_HOST, DB_PORT);
         return mongoClient.getDatabase(DB_NAME);
@@ -0,0 +1,245 @@
+/*
+ * Copyright © 2018 Tinkoff Bank
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.tinkoff;
+
+/*
+ * @author Snezhana Krass
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.tinkoff.objects.Snapshot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/*
+ * Buffer of snapshot writes which are flushed by one thread as bulk writes.
+ * A batch is flushed when it has ingest.batch.size writes or ingest.flush.ms passed since its first write.
+ * Writes of the same snapshot in one batch are coalesced into the latest one.
+ * A full queue blocks creators of snapshots until the next flush.
+ */
+public class SnapshotWriteBuffer {
+
+    private static final int BATCH_SIZE = Integer.parseInt(System.getProperty("ingest.batch.size", "500"));
+    private static final long FLUSH_INTERVAL_MS = Long.parseLong(System.getProperty("ingest.flush.ms", "20"));
+    private static final int QUEUE_SIZE = Integer.parseInt(System.getProperty("ingest.queue.size", "10000"));
+
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotWriteBuffer.class);
+
+    private final BlockingQueue<PendingWrite> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Consumer<List<PendingWrite>> writer;
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalFlushMs = new AtomicLong();
+    private volatile long lastFlushMs;
+    private volatile long maxFlushMs;
+
+    /*
+     * Writer stores the batch and marks failed writes, the whole batch is failed if writer throws an exception.
+     */
+    public SnapshotWriteBuffer(Consumer<List<PendingWrite>> writer) {
+        this.writer = writer;
+
+        new ThreadFactoryBuilder()
+                .setNameFormat("snapshot-writer-%d")
+                .setDaemon(true)
+                .build()
+                .newThread(this::run)
+                .start();
+    }
+
+    /*
+     * Returns a future of the snapshot id which is completed when the snapshot is stored.
+     */
+    public CompletableFuture<String> add(String id, Snapshot snapshot, WriteModel<Document> model) throws InterruptedException {
+        PendingWrite write = new PendingWrite(id, snapshot, model);
+        queue.put(write);
+
+        return write.future;
+    }
+
+    public WriteStats getStats() {
+        long flushesCount = flushes.get();
+        return new WriteStats(queue.size(), flushesCount, written.get(), failed.get(),
+                lastFlushMs, maxFlushMs, flushesCount > 0 ? totalFlushMs.get() / flushesCount : 0);
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>(BATCH_SIZE);
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+
+                long deadline = System.nanoTime() + MILLISECONDS.toNanos(FLUSH_INTERVAL_MS);
+                while (batch.size() < BATCH_SIZE) {
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+
+                    long timeout = deadline - System.nanoTime();
+                    if (batch.size() >= BATCH_SIZE || timeout <= 0) {
+                        break;
+                    }
+
+                    PendingWrite next = queue.poll(timeout, NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                logger.error("[bulk write]", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingWrite> batch) {
+        Map<String, List<PendingWrite>> writes = new LinkedHashMap<>();
+        batch.forEach(write -> writes.computeIfAbsent(write.getId(), id -> new ArrayList<>()).add(write));
+
+        List<PendingWrite> latest = new ArrayList<>(writes.size());
+        writes.values().forEach(sameWrites -> latest.add(sameWrites.get(sameWrites.size() - 1)));
+
+        long start = System.currentTimeMillis();
+        try {
+            writer.accept(latest);
+        } catch (Exception e) {
+            logger.error("[bulk write] " + latest.size() + " snapshots", e);
+            latest.forEach(write -> write.fail(e));
+        }
+        long time = System.currentTimeMillis() - start;
+
+        flushes.incrementAndGet();
+        totalFlushMs.addAndGet(time);
+        lastFlushMs = time;
+        maxFlushMs = max(maxFlushMs, time);
+
+        for (List<PendingWrite> sameWrites : writes.values()) {
+            Throwable error = sameWrites.get(sameWrites.size() - 1).error;
+            if (error != null) {
+                failed.addAndGet(sameWrites.size());
+                sameWrites.forEach(write -> write.future.completeExceptionally(error));
+            } else {
+                written.addAndGet(sameWrites.size());
+                sameWrites.forEach(write -> write.future.complete(write.getId()));
+            }
+        }
+
+        logger.debug("[bulk write] snapshots: " + batch.size() + ", writes: " + latest.size() + ", time ms: " + time);
+    }
+
+    public static class PendingWrite {
+
+        private final String id;
+        private final Snapshot snapshot;
+        private final WriteModel<Document> model;
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+        private volatile Throwable error;
+
+        PendingWrite(String id, Snapshot snapshot, WriteModel<Document> model) {
+            this.id = id;
+            this.snapshot = snapshot;
+            this.model = model;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Snapshot getSnapshot() {
+            return snapshot;
+        }
+
+        public WriteModel<Document> getModel() {
+            return model;
+        }
+
+        public void fail(Throwable error) {
+            this.error = error;
+        }
+    }
+
+    public static class WriteStats {
+
+        private int queued;
+        private long flushes;
+        private long written;
+        private long failed;
+        private long lastFlushMs;
+        private long maxFlushMs;
+        private long avgFlushMs;
+
+        public WriteStats(int queued, long flushes, long written, long failed, long lastFlushMs, long maxFlushMs, long avgFlushMs) {
+            this.queued = queued;
+            this.flushes = flushes;
+            this.written = written;
+            this.failed = failed;
+            this.lastFlushMs = lastFlushMs;
+            this.maxFlushMs = maxFlushMs;
+            this.avgFlushMs = avgFlushMs;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+
+        public long getFlushes() {
+            return flushes;
+        }
+
+        public long getWritten() {
+            return written;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getLastFlushMs() {
+            return lastFlushMs;
+        }
+
+        public long getMaxFlushMs() {
+            return maxFlushMs;
+        }
+
+        public long getAvgFlushMs() {
+            return avgFlushMs;
+        }
+    }
+}
\ No newline at end of file